@@ -0,0 +1,255 @@
+import javax.swing.SwingUtilities;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Throughput and allocation benchmarks for the engine hot paths.
+//
+//   java -cp out/production/2048 EngineBenchmark                       run everything
+//   java -cp out/production/2048 EngineBenchmark --quick               shorter iterations, too noisy to gate
+//   java -cp out/production/2048 EngineBenchmark --write bench/baseline.txt
+//   java -cp out/production/2048 EngineBenchmark --baseline bench/baseline.txt
+//
+// With --baseline the run exits with status 1 when a benchmark got more than
+// SLOWDOWN_LIMIT slower, started allocating or has no baseline entry, so it can
+// gate a build. The checked-in baseline is written headless, gate headless runs
+// against it. The same cases run under JMH from the bench profile of the pom.
+public final class EngineBenchmark {
+
+    private static final int[] SIZES = {4, 8, 16, 64};
+    private static final double SLOWDOWN_LIMIT = 0.20;
+    // Operations that take about a nanosecond are compared in absolute terms
+    private static final double NOISE_NANOS = 1;
+    private static final double ALLOCATION_SLACK = 16;
+    // Headless games from a fixed seed, so every run measures the same boards
+    private static final long SEED = 2048;
+
+    private EngineBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        Path baselinePath = null;
+        Path writePath = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--quick")) {
+                quick = true;
+            } else if (args[i].equals("--baseline")) {
+                baselinePath = Paths.get(args[++i]);
+            } else if (args[i].equals("--write")) {
+                writePath = Paths.get(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        Harness harness = quick ? new Harness(2, 3, 100_000_000L) : new Harness(5, 5, 500_000_000L);
+        System.out.println(Harness.header());
+
+        for (Map.Entry<String, LongSupplier> entry : operations().entrySet()) {
+            harness.measure(entry.getKey(), entry.getValue());
+        }
+        runFrameBenchmark(harness);
+
+        if (writePath != null) {
+            Files.write(writePath, Harness.toBaseline(harness.getResults()).getBytes(StandardCharsets.UTF_8));
+        }
+        if (baselinePath != null && !compare(harness.getResults(), baselinePath)) {
+            System.exit(1);
+        }
+    }
+
+    // Every headless case as a single operation, in the order of the report. The JMH
+    // benchmarks run the same operations, so both harnesses measure the same code.
+    // Each call builds fresh boards, the operations keep their own state.
+    public static Map<String, LongSupplier> operations() {
+        Map<String, LongSupplier> operations = new LinkedHashMap<>();
+        for (int size : SIZES) {
+            addGameOperations(operations, size);
+        }
+        addBatchOperation(operations);
+        addColorOperations(operations);
+        return operations;
+    }
+
+    public static LongSupplier operation(String name) {
+        LongSupplier operation = operations().get(name);
+        Useful.require(operation != null, "Unknown benchmark " + name);
+        return operation;
+    }
+
+    private static void addGameOperations(Map<String, LongSupplier> operations, int size) {
+        Game prepared = populate(size, size * size / 2);
+        String suffix = "[" + size + "]";
+
+        // A move on a board that is already compacted does next to nothing, so every move
+        // starts again from the prepared board. Game.copyFrom is that restore on its own,
+        // it is part of each move's time.
+        Game restored = prepared.copy();
+        operations.put("Game.copyFrom" + suffix, () -> {
+            restored.copyFrom(prepared);
+            return restored.getScore();
+        });
+        Game left = prepared.copy();
+        operations.put("Game.moveLeft" + suffix, () -> {
+            left.copyFrom(prepared);
+            left.moveLeft(false);
+            return left.getScore();
+        });
+        Game right = prepared.copy();
+        operations.put("Game.moveRight" + suffix, () -> {
+            right.copyFrom(prepared);
+            right.moveRight(false);
+            return right.getScore();
+        });
+        Game up = prepared.copy();
+        operations.put("Game.moveUp" + suffix, () -> {
+            up.copyFrom(prepared);
+            up.moveUp(false);
+            return up.getScore();
+        });
+        Game down = prepared.copy();
+        operations.put("Game.moveDown" + suffix, () -> {
+            down.copyFrom(prepared);
+            down.moveDown(false);
+            return down.getScore();
+        });
+
+        // A full board, the case where isOver used to simulate all four moves
+        Game full = populate(size, size * size);
+        operations.put("Game.isOver" + suffix, () -> full.isOver() ? 1 : 0);
+
+        // Checkpoints into one reused direct buffer, as a bot saving every move would
+        ByteBuffer checkpoint = ByteBuffer.allocateDirect(prepared.encodedLength() * 2);
+        operations.put("Game.writeTo" + suffix, () -> {
+            checkpoint.clear();
+            prepared.writeTo(checkpoint);
+            return checkpoint.position();
+        });
+
+        // Spawning fills the board, so start over from the fresh board every half board.
+        // The restore is amortised over size * size / 2 spawns.
+        Game fresh = new Game(size, SEED);
+        Game target = fresh.copy();
+        int refill = Math.max(1, size * size / 2);
+        int[] spawned = new int[1];
+        operations.put("Game.generateRandomCell" + suffix, () -> {
+            if (++spawned[0] == refill) {
+                spawned[0] = 0;
+                target.copyFrom(fresh);
+            }
+            target.generateRandomCell();
+            return target.getLastSpawn();
+        });
+
+        int[][] matrix = new int[size][size];
+        for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < size; ++j) {
+                matrix[i][j] = prepared.getNum(i, j);
+            }
+        }
+        operations.put("Useful.allRowsMovable" + suffix, () -> Useful.allRowsMovable(matrix) ? 1 : 0);
+        operations.put("Useful.allColsMovable" + suffix, () -> Useful.allColsMovable(matrix) ? 1 : 0);
+    }
+
+    // One op steps every board once. The boards start over every 64 steps,
+    // before most of them are stuck.
+    private static void addBatchOperation(Map<String, LongSupplier> operations) {
+        int boards = 4096;
+        int restart = 64;
+        BatchGame batch = new BatchGame(boards, 4, 4, SEED);
+        Direction[] moves = new Direction[boards];
+        long[] gained = new long[boards];
+        boolean[] changed = new boolean[boards];
+        int[] steps = new int[1];
+        operations.put("BatchGame.step[4x4x" + boards + "]", () -> {
+            int i = steps[0]++;
+            if (i % restart == restart - 1) {
+                for (int b = 0; b < boards; ++b) {
+                    batch.reset(b, SEED + b + i);
+                }
+            }
+            for (int b = 0; b < boards; ++b) {
+                moves[b] = Direction.of((b + i) & 3);
+            }
+            batch.step(moves, gained, changed);
+            return batch.getScore(0);
+        });
+    }
+
+    private static void addColorOperations(Map<String, LongSupplier> operations) {
+        ColorHSV[] colors = new ColorHSV[16];
+        for (int i = 0; i < colors.length; ++i) {
+            colors[i] = ColorHSV.ofExponent(i + 1);
+        }
+        int[] next = new int[1];
+        operations.put("ColorHSV.toAwtColor", () -> colors[next[0]++ & 15].toAwtColor().getRGB());
+        operations.put("ColorHSV.colorOfValue", () -> ColorHSV.colorOfValue(Game.BASE << (next[0]++ & 15)).getRGB());
+    }
+
+    private static void runFrameBenchmark(Harness harness) throws InterruptedException, InvocationTargetException {
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("GameFrame.update skipped: no display");
+            return;
+        }
+        GameFrame[] frame = new GameFrame[1];
+        SwingUtilities.invokeAndWait(() -> frame[0] = new GameFrame(4));
+        ChangeSet all = new ChangeSet(4, 4);
+        all.markEverything();
+        harness.measure("GameFrame.update[4]", ops -> {
+            try {
+                SwingUtilities.invokeAndWait(() -> {
+                    for (int i = 0; i < ops; ++i) {
+                        frame[0].update(all);
+                        frame[0].render();
+                    }
+                });
+            } catch (InterruptedException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        SwingUtilities.invokeAndWait(() -> frame[0].dispose());
+    }
+
+    // Spawns random tiles until the board holds the given number of them, so that moves
+    // have real work to do. Playing moves to get there is far too slow on the larger boards.
+    private static Game populate(int size, int tiles) {
+        Game game = new Game(size, SEED);
+        for (int placed = 2; placed < tiles; ++placed) {
+            game.generateRandomCell();
+        }
+        return game;
+    }
+
+    private static boolean compare(List<Harness.Result> results, Path baselinePath) throws IOException {
+        Map<String, double[]> baseline = Harness.parseBaseline(Files.readAllLines(baselinePath));
+        boolean passed = true;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-36s %12s %12s %10s%n", "compared to " + baselinePath, "base ns/op", "base B/op", "change");
+        for (Harness.Result r : results) {
+            double[] base = baseline.get(r.name);
+            if (base == null) {
+                System.out.printf(Locale.ROOT, "%-36s %12s %12s %10s  NO BASELINE%n", r.name, "-", "-", "-");
+                passed = false;
+                continue;
+            }
+            double change = r.nanosPerOp / Math.max(base[0], NOISE_NANOS) - 1;
+            boolean slower = r.nanosPerOp - base[0] > Math.max(SLOWDOWN_LIMIT * base[0], NOISE_NANOS);
+            boolean allocates = r.bytesPerOp > base[1] + ALLOCATION_SLACK;
+            String verdict = slower ? "  SLOWER" : allocates ? "  ALLOCATES" : "";
+            System.out.printf(Locale.ROOT, "%-36s %12.1f %12.1f %+9.1f%%%s%n",
+                    r.name, base[0], base[1], change * 100, verdict);
+            passed = passed && !slower && !allocates;
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,152 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Minimal JMH style measurement loop: calibrate a batch size, warm up, then measure
+// several timed iterations. Besides ns/op it reports the bytes allocated per operation
+// by the measuring thread, the same number that JMH's "-prof gc" calls gc.alloc.rate.norm.
+public final class Harness {
+
+    // Benchmark bodies run their operation ops times and feed results into sink
+    public interface Body {
+        void run(int ops);
+    }
+
+    public static final class Result {
+        public final String name;
+        public final double nanosPerOp;
+        public final double error;
+        public final double bytesPerOp;
+
+        private Result(String name, double nanosPerOp, double error, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public double opsPerSecond() {
+            return 1e9 / nanosPerOp;
+        }
+    }
+
+    // Written by the bodies so that the JIT can not drop their work
+    public static volatile long sink;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    public Harness(int warmups, int iterations, long iterationNanos) {
+        Useful.require(warmups >= 0 && iterations > 0 && iterationNanos > 0);
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationNanos = iterationNanos;
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    public Result measure(String name, Body body) {
+        int ops = calibrate(body);
+        for (int i = 0; i < warmups; ++i) {
+            body.run(ops);
+        }
+
+        double[] samples = new double[iterations];
+        long allocated = 0;
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; ++i) {
+            long bytes = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            body.run(ops);
+            long elapsed = System.nanoTime() - start;
+            allocated += THREADS.getThreadAllocatedBytes(thread) - bytes;
+            samples[i] = (double) elapsed / ops;
+        }
+
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        Result result = new Result(name, mean, error, (double) allocated / ((long) ops * iterations));
+        results.add(result);
+        System.out.println(format(result));
+        return result;
+    }
+
+    // Runs a single operation ops times, summing what it returns into the sink
+    public Result measure(String name, LongSupplier operation) {
+        return measure(name, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                sum += operation.getAsLong();
+            }
+            sink = sum;
+        });
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public static String header() {
+        return String.format(Locale.ROOT, "%-36s %14s %10s %14s %12s", "benchmark", "ns/op", "error", "ops/s", "B/op");
+    }
+
+    public static String format(Result r) {
+        return String.format(Locale.ROOT, "%-36s %14.1f %10.1f %14.0f %12.1f",
+                r.name, r.nanosPerOp, r.error, r.opsPerSecond(), r.bytesPerOp);
+    }
+
+    // Baseline files hold one "name nanosPerOp bytesPerOp" line per benchmark
+    public static String toBaseline(List<Result> results) {
+        StringBuilder builder = new StringBuilder();
+        for (Result r : results) {
+            builder.append(String.format(Locale.ROOT, "%s %.1f %.1f%n", r.name, r.nanosPerOp, r.bytesPerOp));
+        }
+        return builder.toString();
+    }
+
+    public static Map<String, double[]> parseBaseline(List<String> lines) {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] parts = trimmed.split("\\s+");
+            Useful.require(parts.length == 3, "Malformed baseline line: " + line);
+            baseline.put(parts[0], new double[] {Double.parseDouble(parts[1]), Double.parseDouble(parts[2])});
+        }
+        return baseline;
+    }
+
+    // Doubles the batch until a single batch takes about a tenth of an iteration
+    private int calibrate(Body body) {
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            body.run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= iterationNanos / 10 || ops >= (1 << 30)) {
+                long scaled = Math.max(1, (long) ((double) ops * iterationNanos / Math.max(1, elapsed)));
+                return (int) Math.min(scaled, Integer.MAX_VALUE);
+            }
+            ops <<= 1;
+        }
+    }
+}
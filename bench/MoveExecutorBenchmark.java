@@ -0,0 +1,86 @@
+// Compares the move executors on growing boards and prints which one wins where.
+// Run with: java -cp out/production/2048 MoveExecutorBenchmark [seconds per case]
+public final class MoveExecutorBenchmark {
+
+    private static final int[] SIZES = {4, 16, 64, 256, 1024};
+    private static final long SEED = 2048;
+
+    private MoveExecutorBenchmark() {}
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        long budget = (long) (seconds * 1e9);
+
+        System.out.printf("%-6s", "size");
+        for (MoveExecutor mode : MoveExecutor.values()) {
+            System.out.printf("%20s", mode + " ns/move");
+        }
+        System.out.printf("%12s%n", "winner");
+
+        for (int size : SIZES) {
+            System.out.printf("%-6d", size);
+            MoveExecutor winner = null;
+            double best = Double.MAX_VALUE;
+            for (MoveExecutor mode : MoveExecutor.values()) {
+                // Warm up with the same budget, then measure
+                measure(size, mode, budget);
+                double nanos = measure(size, mode, budget);
+                System.out.printf("%20.0f", nanos);
+                if (nanos < best) {
+                    best = nanos;
+                    winner = mode;
+                }
+            }
+            System.out.printf("%12s%n", winner);
+        }
+    }
+
+    // Every move starts from the same half full board, so that each line has tiles to
+    // slide and merge. Restoring the board costs time too, it is measured on its own
+    // and taken off, what is left is the move.
+    private static double measure(int size, MoveExecutor mode, long budget) {
+        Game prepared = populate(size, mode);
+        Game game = populate(size, mode);
+        double restore = timeRestore(game, prepared, budget / 4);
+        long moves = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            game.copyFrom(prepared);
+            game.moveLeft(false);
+            game.copyFrom(prepared);
+            game.moveUp(false);
+            game.copyFrom(prepared);
+            game.moveRight(false);
+            game.copyFrom(prepared);
+            game.moveDown(false);
+            moves += 4;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budget);
+        return Math.max(0, (double) elapsed / moves - restore);
+    }
+
+    private static double timeRestore(Game game, Game prepared, long budget) {
+        long restores = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            game.copyFrom(prepared);
+            game.copyFrom(prepared);
+            game.copyFrom(prepared);
+            game.copyFrom(prepared);
+            restores += 4;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budget);
+        return (double) elapsed / restores;
+    }
+
+    // Same fixed seed for every executor, so that they all move the same board
+    private static Game populate(int size, MoveExecutor mode) {
+        Game game = new Game(size, size, null, mode, new GameRandom(SEED));
+        for (int placed = 2; placed < size * size / 2; ++placed) {
+            game.generateRandomCell();
+        }
+        return game;
+    }
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// The EngineBenchmark operations under JMH, one fork per operation.
+//
+//   mvn -B -P bench package
+//   java -jar target/benchmarks.jar -prof gc
+//   java -jar target/benchmarks.jar -p name=Game.moveLeft[64] -prof gc
+//
+// JMH refuses benchmark classes in the default package, where the game lives and
+// where nothing in a package can name it. So the operation is looked up by name once
+// per trial and called through a LongSupplier, which is the only one the fork loads.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class EngineJmh {
+
+    @Param({
+            "Game.copyFrom[4]",
+            "Game.moveLeft[4]",
+            "Game.moveRight[4]",
+            "Game.moveUp[4]",
+            "Game.moveDown[4]",
+            "Game.isOver[4]",
+            "Game.writeTo[4]",
+            "Game.generateRandomCell[4]",
+            "Useful.allRowsMovable[4]",
+            "Useful.allColsMovable[4]",
+            "Game.copyFrom[8]",
+            "Game.moveLeft[8]",
+            "Game.moveRight[8]",
+            "Game.moveUp[8]",
+            "Game.moveDown[8]",
+            "Game.isOver[8]",
+            "Game.writeTo[8]",
+            "Game.generateRandomCell[8]",
+            "Useful.allRowsMovable[8]",
+            "Useful.allColsMovable[8]",
+            "Game.copyFrom[16]",
+            "Game.moveLeft[16]",
+            "Game.moveRight[16]",
+            "Game.moveUp[16]",
+            "Game.moveDown[16]",
+            "Game.isOver[16]",
+            "Game.writeTo[16]",
+            "Game.generateRandomCell[16]",
+            "Useful.allRowsMovable[16]",
+            "Useful.allColsMovable[16]",
+            "Game.copyFrom[64]",
+            "Game.moveLeft[64]",
+            "Game.moveRight[64]",
+            "Game.moveUp[64]",
+            "Game.moveDown[64]",
+            "Game.isOver[64]",
+            "Game.writeTo[64]",
+            "Game.generateRandomCell[64]",
+            "Useful.allRowsMovable[64]",
+            "Useful.allColsMovable[64]",
+            "BatchGame.step[4x4x4096]",
+            "ColorHSV.toAwtColor",
+            "ColorHSV.colorOfValue"
+    })
+    public String name;
+
+    private LongSupplier operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operation = (LongSupplier) Class.forName("EngineBenchmark")
+                .getMethod("operation", String.class)
+                .invoke(null, name);
+    }
+
+    @Benchmark
+    public long run() {
+        return operation.getAsLong();
+    }
+}
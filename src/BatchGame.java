@@ -0,0 +1,260 @@
+import java.util.function.IntConsumer;
+
+// Many boards of the same size stepped in lockstep, for training and analysis.
+// Everything lives in flat primitive arrays: board b owns the cells
+// [b * cells, (b + 1) * cells) of one byte array of exponents, row by row
+// (0 is empty, 1 is BASE, 2 is NEXT_BASE ...), its score and its SplitMix64
+// generator state sit at index b of their own arrays.
+//
+// Moves and merges follow Game exactly, so a board loaded from a Game slides
+// to the same tiles and score. Spawns draw from the board's generator like
+// Game does, but pick the k-th empty cell in row major order, so the same
+// seed deals the same values in other places than a Game would.
+public final class BatchGame {
+
+    // Boards per task handed to the executor
+    private static final int CHUNK = 256;
+
+    private final int count;
+    private final int width;
+    private final int height;
+    private final int cells;
+    private final byte[] exponents;
+    private final long[] scores;
+    private final long[] states;
+    private MoveExecutor executor;
+
+    // Arguments of the step in progress, read by the chunk kernel
+    private Direction[] stepMoves;
+    private long[] stepGained;
+    private boolean[] stepChanged;
+    private final IntConsumer stepChunk = this::stepChunk;
+
+    // Board b is dealt from seed + b, as SelfPlay does for game b
+    public BatchGame(int count, int width, int height, long seed) {
+        this(count, width, height, seed, MoveExecutor.FORK_JOIN);
+    }
+
+    public BatchGame(int count, int width, int height, long seed, MoveExecutor e) {
+        Useful.require(count > 0 && width > 0 && height > 0 && (long) width * height >= 2);
+        Useful.require((long) count * width * height <= Integer.MAX_VALUE, "Batch too large");
+        Useful.require(e != null);
+        this.count = count;
+        this.width = width;
+        this.height = height;
+        this.cells = width * height;
+        this.exponents = new byte[count * cells];
+        this.scores = new long[count];
+        this.states = new long[count];
+        this.executor = e;
+        for (int b = 0; b < count; ++b) {
+            reset(b, seed + b);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setMoveExecutor(MoveExecutor e) {
+        Useful.require(e != null);
+        executor = e;
+    }
+
+    public long getScore(int b) {
+        return scores[b];
+    }
+
+    public int getExponent(int b, int i, int j) {
+        return exponents[b * cells + i * width + j];
+    }
+
+    // Tile value as Game reports it, 0 for an empty cell
+    public int getNum(int b, int i, int j) {
+        return Game.toInt(getExponent(b, i, j));
+    }
+
+    // Starts a new game on board b
+    public void reset(int b, long seed) {
+        int base = b * cells;
+        for (int p = base; p < base + cells; ++p) {
+            exponents[p] = 0;
+        }
+        scores[b] = 0;
+        states[b] = seed;
+        spawn(b);
+        spawn(b);
+    }
+
+    // Copies the tiles and score of a game of the same size into board b, its
+    // generator state stays as it is
+    public void load(int b, Engine game) {
+        Useful.require(game.getWidth() == width && game.getHeight() == height);
+        int base = b * cells;
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                exponents[base + i * width + j] = (byte) game.getExponent(i, j);
+            }
+        }
+        scores[b] = game.getScore();
+    }
+
+    // Plays moves[b] on every board b, a null move leaves the board alone. A tile is
+    // spawned on every board that changed. gained[b] receives the score gained or
+    // Engine.UNCHANGED, changed[b] whether the board moved.
+    public void step(Direction[] moves, long[] gained, boolean[] changed) {
+        Useful.require(moves.length == count && gained.length == count && changed.length == count);
+        stepMoves = moves;
+        stepGained = gained;
+        stepChanged = changed;
+        try {
+            executor.execute((count + CHUNK - 1) / CHUNK, stepChunk);
+        } finally {
+            stepMoves = null;
+            stepGained = null;
+            stepChanged = null;
+        }
+    }
+
+    private void stepChunk(int chunk) {
+        int from = chunk * CHUNK;
+        int to = Math.min(count, from + CHUNK);
+        for (int b = from; b < to; ++b) {
+            Direction d = stepMoves[b];
+            long gained = d == null ? Engine.UNCHANGED : slide(b, d);
+            stepGained[b] = gained;
+            stepChanged[b] = gained != Engine.UNCHANGED;
+            if (gained != Engine.UNCHANGED) {
+                scores[b] += gained;
+                spawn(b);
+            }
+        }
+    }
+
+    // Mask of the directions that would change board b, see Direction.mask
+    public int legalMoves(int b) {
+        int base = b * cells;
+        int mask = 0;
+        for (int i = 0; i < height; ++i) {
+            int row = base + i * width;
+            for (int j = 0; j < width - 1; ++j) {
+                mask |= Game.pairMoves(exponents[row + j], exponents[row + j + 1], Game.MAX_EXPONENT,
+                        Direction.LEFT, Direction.RIGHT);
+            }
+        }
+        for (int p = base; p < base + cells - width; ++p) {
+            mask |= Game.pairMoves(exponents[p], exponents[p + width], Game.MAX_EXPONENT, Direction.UP, Direction.DOWN);
+        }
+        return mask;
+    }
+
+    public boolean isOver(int b) {
+        return legalMoves(b) == 0;
+    }
+
+    // Returns the score gained, or Engine.UNCHANGED
+    private long slide(int b, Direction d) {
+        int base = b * cells;
+        long gained = 0;
+        boolean changed = false;
+        switch (d) {
+            case LEFT:
+                for (int i = 0; i < height; ++i) {
+                    long line = slideLine(base + i * width, 1, width);
+                    changed |= line != Engine.UNCHANGED;
+                    gained += Math.max(line, 0);
+                }
+                break;
+            case RIGHT:
+                for (int i = 0; i < height; ++i) {
+                    long line = slideLine(base + i * width + width - 1, -1, width);
+                    changed |= line != Engine.UNCHANGED;
+                    gained += Math.max(line, 0);
+                }
+                break;
+            case UP:
+                for (int j = 0; j < width; ++j) {
+                    long line = slideLine(base + j, width, height);
+                    changed |= line != Engine.UNCHANGED;
+                    gained += Math.max(line, 0);
+                }
+                break;
+            default:
+                for (int j = 0; j < width; ++j) {
+                    long line = slideLine(base + cells - width + j, -width, height);
+                    changed |= line != Engine.UNCHANGED;
+                    gained += Math.max(line, 0);
+                }
+                break;
+        }
+        return changed ? gained : Engine.UNCHANGED;
+    }
+
+    // Compacts one line in place toward start, the same algorithm as Game's row kernels
+    private long slideLine(int start, int step, int length) {
+        byte[] a = exponents;
+        int end = start;
+        int last = 0;
+        long gained = 0;
+        boolean changed = false;
+        for (int k = 0, p = start; k < length; ++k, p += step) {
+            int e = a[p];
+            if (e == 0) {
+                continue;
+            }
+            if (e == last && e < Game.MAX_EXPONENT) {
+                a[end - step] = (byte) (e + 1);
+                gained += (long) Game.BASE << e;
+                last = 0;
+                changed = true;
+            } else {
+                if (end != p) {
+                    a[end] = (byte) e;
+                    changed = true;
+                }
+                last = e;
+                end += step;
+            }
+        }
+        if (!changed) {
+            return Engine.UNCHANGED;
+        }
+        for (int k = (end - start) / step, p = end; k < length; ++k, p += step) {
+            a[p] = 0;
+        }
+        return gained;
+    }
+
+    // Same draws as Game.generateRandomCell: nextInt over the empty cells, then nextBoolean
+    private void spawn(int b) {
+        int base = b * cells;
+        // Branch free count, a loop the JIT vectorizes
+        int empty = 0;
+        for (int p = base; p < base + cells; ++p) {
+            empty += exponents[p] == 0 ? 1 : 0;
+        }
+        if (empty == 0) {
+            return;
+        }
+        long state = states[b] + GameRandom.GOLDEN_GAMMA;
+        int target = GameRandom.toInt(GameRandom.mix64(state), empty);
+        state += GameRandom.GOLDEN_GAMMA;
+        byte exponent = (byte) (GameRandom.mix64(state) < 0 ? 2 : 1);
+        states[b] = state;
+
+        for (int p = base; ; ++p) {
+            if (exponents[p] == 0 && target-- == 0) {
+                exponents[p] = exponent;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+// 4x4 engine that packs the whole board into a single long.
+// Every cell is a 4 bit exponent (0 is empty, 1 is BASE, 2 is NEXT_BASE ...),
+// cell (i, j) lives at bit 4 * (4 * i + j), so each row is one 16 bit chunk.
+// Row moves are looked up in precomputed tables, column moves transpose first.
+public final class BitboardGame implements Engine {
+
+    public static final int SIZE = 4;
+
+    // A nibble can not hold anything above this exponent, two such tiles do not merge
+    public static final int MAX_EXPONENT = 15;
+
+    private static final int ROW_COUNT = 1 << 16;
+    private static final int ROW_MASK = ROW_COUNT - 1;
+
+    private static final char[] ROW_LEFT = new char[ROW_COUNT];
+    private static final char[] ROW_RIGHT = new char[ROW_COUNT];
+    private static final int[] SCORE_LEFT = new int[ROW_COUNT];
+    private static final int[] SCORE_RIGHT = new int[ROW_COUNT];
+
+    // A state in the undo history: board, score << 32 | move count, generator state
+    private static final int STATE_LONGS = 3;
+
+    static {
+        int[] line = new int[SIZE];
+        for (int row = 0; row < ROW_COUNT; ++row) {
+            for (int j = 0; j < SIZE; ++j) {
+                line[j] = (row >>> (4 * j)) & 0xF;
+            }
+            int score = slideLeft(line);
+            int result = 0;
+            for (int j = 0; j < SIZE; ++j) {
+                result |= line[j] << (4 * j);
+            }
+            ROW_LEFT[row] = (char) result;
+            SCORE_LEFT[row] = score;
+
+            int reversed = reverseRow(row);
+            ROW_RIGHT[reversed] = (char) reverseRow(result);
+            SCORE_RIGHT[reversed] = score;
+        }
+    }
+
+    // Fields
+    private final Observer observer;
+    private final ChangeSet changes;
+    private final GameRandom rand;
+    private long board;
+    private int moveCount;
+    // Board at the last notification, the observer is told the nibbles that differ
+    private long notified;
+    private int score;
+
+    // Undo history, null when it is off: a ring of packed states, the current one
+    // included. cursor is the current state, the states after it can be redone.
+    private long[] history;
+    private int historyCapacity;
+    private int first;
+    private int length;
+    private int cursor;
+
+    // Constructors
+    public BitboardGame(Observer o) {
+        this(o, new GameRandom());
+    }
+
+    // Headless game for simulations, the same seed always deals the same tiles
+    public BitboardGame(long seed) {
+        this(null, new GameRandom(seed));
+    }
+
+    public BitboardGame(Observer o, GameRandom r) {
+        observer = o;
+        changes = o == null ? null : new ChangeSet(SIZE, SIZE);
+        rand = r;
+        board = 0;
+        score = 0;
+
+        generateRandomCell();
+        generateRandomCell();
+        if (changes != null) {
+            changes.markEverything();
+            setHistoryBudget(Game.DEFAULT_HISTORY_BYTES);
+        }
+    }
+
+    // The copy has no observer, its generator continues where the original's stands
+    private BitboardGame(BitboardGame other) {
+        observer = null;
+        changes = null;
+        rand = new GameRandom(other.rand);
+        board = other.board;
+        score = other.score;
+        moveCount = other.moveCount;
+    }
+
+    //Methods
+    public long getBoard() {
+        return board;
+    }
+
+    @Override
+    public int getWidth() {
+        return SIZE;
+    }
+
+    @Override
+    public int getHeight() {
+        return SIZE;
+    }
+
+    @Override
+    public long getScore() {
+        return score;
+    }
+
+    @Override
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    @Override
+    public int getExponent(int i, int j) {
+        return exponentAt(board, i, j);
+    }
+
+    @Override
+    public int getNum(int i, int j) {
+        return toValue(exponentAt(board, i, j));
+    }
+
+    @Override
+    public int getMaxExponent() {
+        return MAX_EXPONENT;
+    }
+
+    @Override
+    public int getHighestExponent() {
+        int max = 0;
+        for (long b = board; b != 0; b >>>= 4) {
+            max = Math.max(max, (int) (b & 0xF));
+        }
+        return max;
+    }
+
+    @Override
+    public int getHighestTile() {
+        return toValue(getHighestExponent());
+    }
+
+    @Override
+    public boolean isOver() {
+        if (Metrics.ENABLED) {
+            long start = System.nanoTime();
+            boolean result = legalMoves(board) == 0;
+            Metrics.IS_OVER.record(System.nanoTime() - start);
+            return result;
+        }
+        return legalMoves(board) == 0;
+    }
+
+    @Override
+    public BitboardGame copy() {
+        return new BitboardGame(this);
+    }
+
+    // Undo history is kept within this many bytes, 24 per move, the oldest moves
+    // are forgotten first. 0 turns it off.
+    public void setHistoryBudget(long bytes) {
+        Useful.require(bytes >= 0);
+        historyCapacity = (int) Math.min(Integer.MAX_VALUE / STATE_LONGS, bytes / (STATE_LONGS * Long.BYTES));
+        if (historyCapacity == 0) {
+            history = null;
+            return;
+        }
+        if (history == null) {
+            history = new long[STATE_LONGS];
+            first = 0;
+            length = 0;
+            cursor = -1;
+            remember();
+        } else if (history.length / STATE_LONGS > historyCapacity) {
+            // Keeps the newest states up to the current one
+            resize(historyCapacity);
+        }
+    }
+
+    @Override
+    public boolean undo() {
+        if (history == null || cursor == 0) {
+            return false;
+        }
+        load(--cursor);
+        return true;
+    }
+
+    @Override
+    public boolean redo() {
+        if (history == null || cursor == length - 1) {
+            return false;
+        }
+        load(++cursor);
+        return true;
+    }
+
+    @Override
+    public int legalMoves() {
+        return legalMoves(board);
+    }
+
+    @Override
+    public void notifyObserver() {
+        if (observer != null) {
+            for (long diff = board ^ notified; diff != 0; diff &= diff - 1) {
+                changes.add(Long.numberOfTrailingZeros(diff) >>> 2);
+            }
+            observer.update(changes);
+            changes.clear();
+            notified = board;
+        }
+    }
+
+    @Override
+    public void moveLeft(boolean enable) {
+        play(Direction.LEFT, enable);
+    }
+
+    @Override
+    public void moveRight(boolean enable) {
+        play(Direction.RIGHT, enable);
+    }
+
+    @Override
+    public void moveUp(boolean enable) {
+        play(Direction.UP, enable);
+    }
+
+    @Override
+    public void moveDown(boolean enable) {
+        play(Direction.DOWN, enable);
+    }
+
+    @Override
+    public long move(Direction d) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        int gained = slide(d);
+        if (gained != UNCHANGED) {
+            ++moveCount;
+            long spawnStart = Metrics.ENABLED ? System.nanoTime() : 0;
+            generateRandomCell();
+            if (Metrics.ENABLED) {
+                Metrics.SPAWN.record(System.nanoTime() - spawnStart);
+            }
+            if (history != null) {
+                remember();
+            }
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(d, System.nanoTime() - start);
+        }
+        return gained;
+    }
+
+    // Appends the current state after the cursor, forgetting what could be redone
+    private void remember() {
+        length = cursor + 1;
+        int slots = history.length / STATE_LONGS;
+        if (length == slots) {
+            if (slots < historyCapacity) {
+                resize((int) Math.min(historyCapacity, 2L * slots));
+            } else {
+                first = (first + 1) % slots;
+                --length;
+            }
+        }
+        int at = slot(length);
+        history[at] = board;
+        history[at + 1] = (long) score << 32 | moveCount;
+        history[at + 2] = rand.getState();
+        cursor = length++;
+    }
+
+    private void load(int k) {
+        int at = slot(k);
+        board = history[at];
+        score = (int) (history[at + 1] >>> 32);
+        moveCount = (int) history[at + 1];
+        rand.setState(history[at + 2]);
+        if (changes != null) {
+            changes.setDirection(null);
+        }
+    }
+
+    // Index of the k-th stored state in the ring
+    private int slot(int k) {
+        return (first + k) % (history.length / STATE_LONGS) * STATE_LONGS;
+    }
+
+    // Moves the newest states up to the cursor into a ring of the given size
+    private void resize(int slots) {
+        int keep = Math.min(slots, cursor + 1);
+        long[] resized = new long[slots * STATE_LONGS];
+        for (int k = 0; k < keep; ++k) {
+            System.arraycopy(history, slot(cursor + 1 - keep + k), resized, k * STATE_LONGS, STATE_LONGS);
+        }
+        history = resized;
+        first = 0;
+        cursor = keep - 1;
+        length = keep;
+    }
+
+    private void play(Direction d, boolean enable) {
+        if (enable) {
+            move(d);
+            notifyObserver();
+        } else {
+            slide(d);
+        }
+    }
+
+    private int slide(Direction d) {
+        long next = move(board, d);
+        if (next == board) {
+            return UNCHANGED;
+        }
+        int gained = score(board, d);
+        board = next;
+        if (changes != null) {
+            changes.setDirection(d);
+        }
+        score += gained;
+        return gained;
+    }
+
+    private void generateRandomCell() {
+        int empty = countEmpty(board);
+        if (empty == 0) {
+            return;
+        }
+        int target = rand.nextInt(empty);
+        for (int shift = 0; shift < 64; shift += 4) {
+            if (((board >>> shift) & 0xF) == 0 && target-- == 0) {
+                long exponent = rand.nextBoolean() ? 2 : 1;
+                board |= exponent << shift;
+                return;
+            }
+        }
+    }
+
+    // Static board operations, usable without an instance
+
+    // Packs any 4x4 engine into a bitboard, its tiles must fit into a nibble
+    public static long pack(Engine game) {
+        if (game instanceof BitboardGame) {
+            return ((BitboardGame) game).board;
+        }
+        Useful.require(game.getWidth() == SIZE && game.getHeight() == SIZE, "Only 4x4 boards can be packed");
+        long packed = 0;
+        for (int i = 0; i < SIZE; ++i) {
+            for (int j = 0; j < SIZE; ++j) {
+                int exponent = game.getExponent(i, j);
+                Useful.require(exponent <= MAX_EXPONENT, "Tile 2^" + exponent + " does not fit into a nibble");
+                packed |= (long) exponent << (4 * (SIZE * i + j));
+            }
+        }
+        return packed;
+    }
+
+    public static int exponentAt(long board, int i, int j) {
+        return (int) ((board >>> (4 * (SIZE * i + j))) & 0xF);
+    }
+
+    public static int toValue(int exponent) {
+        return exponent == 0 ? 0 : Game.BASE << (exponent - 1);
+    }
+
+    public static int countEmpty(long board) {
+        int count = 0;
+        for (int shift = 0; shift < 64; shift += 4) {
+            if (((board >>> shift) & 0xF) == 0) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    public static long move(long board, Direction d) {
+        switch (d) {
+            case LEFT: return moveLeft(board);
+            case RIGHT: return moveRight(board);
+            case UP: return moveUp(board);
+            default: return moveDown(board);
+        }
+    }
+
+    public static int score(long board, Direction d) {
+        switch (d) {
+            case LEFT: return scoreLeft(board);
+            case RIGHT: return scoreRight(board);
+            case UP: return scoreLeft(transpose(board));
+            default: return scoreRight(transpose(board));
+        }
+    }
+
+    public static int legalMoves(long board) {
+        int mask = 0;
+        for (int k = 0; k < Direction.count(); ++k) {
+            Direction d = Direction.of(k);
+            if (move(board, d) != board) {
+                mask |= d.mask();
+            }
+        }
+        return mask;
+    }
+
+    public static long moveLeft(long board) {
+        return (long) ROW_LEFT[(int) (board & ROW_MASK)]
+                | (long) ROW_LEFT[(int) ((board >>> 16) & ROW_MASK)] << 16
+                | (long) ROW_LEFT[(int) ((board >>> 32) & ROW_MASK)] << 32
+                | (long) ROW_LEFT[(int) (board >>> 48)] << 48;
+    }
+
+    public static long moveRight(long board) {
+        return (long) ROW_RIGHT[(int) (board & ROW_MASK)]
+                | (long) ROW_RIGHT[(int) ((board >>> 16) & ROW_MASK)] << 16
+                | (long) ROW_RIGHT[(int) ((board >>> 32) & ROW_MASK)] << 32
+                | (long) ROW_RIGHT[(int) (board >>> 48)] << 48;
+    }
+
+    public static long moveUp(long board) {
+        return transpose(moveLeft(transpose(board)));
+    }
+
+    public static long moveDown(long board) {
+        return transpose(moveRight(transpose(board)));
+    }
+
+    public static int scoreLeft(long board) {
+        return SCORE_LEFT[(int) (board & ROW_MASK)]
+                + SCORE_LEFT[(int) ((board >>> 16) & ROW_MASK)]
+                + SCORE_LEFT[(int) ((board >>> 32) & ROW_MASK)]
+                + SCORE_LEFT[(int) (board >>> 48)];
+    }
+
+    public static int scoreRight(long board) {
+        return SCORE_RIGHT[(int) (board & ROW_MASK)]
+                + SCORE_RIGHT[(int) ((board >>> 16) & ROW_MASK)]
+                + SCORE_RIGHT[(int) ((board >>> 32) & ROW_MASK)]
+                + SCORE_RIGHT[(int) (board >>> 48)];
+    }
+
+    // Mirrors the board along its main diagonal, so columns become rows
+    public static long transpose(long x) {
+        long a1 = x & 0xF0F00F0FF0F00F0FL;
+        long a2 = x & 0x0000F0F00000F0F0L;
+        long a3 = x & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    private static int reverseRow(int row) {
+        return ((row & 0xF) << 12) | ((row & 0xF0) << 4) | ((row >>> 4) & 0xF0) | (row >>> 12);
+    }
+
+    // Same algorithm as Game: drop the gaps, merge equal neighbours once, drop the gaps again
+    private static int slideLeft(int[] line) {
+        int score = 0;
+        int write = 0;
+        int pending = 0;
+        for (int j = 0; j < line.length; ++j) {
+            int current = line[j];
+            if (current == 0) {
+                continue;
+            }
+            if (current == pending && current < MAX_EXPONENT) {
+                line[write - 1] = current + 1;
+                score += toValue(current + 1);
+                pending = 0;
+            } else {
+                line[write++] = current;
+                pending = current;
+            }
+        }
+        while (write < line.length) {
+            line[write++] = 0;
+        }
+        return score;
+    }
+}
@@ -0,0 +1,365 @@
+import javax.swing.JComponent;
+import javax.swing.Timer;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntFunction;
+
+// The board drawn with Java2D in a single component. It keeps tile exponents, as
+// the game does, and turns them into numbers only to render a tile. Every tile is
+// rendered once per cell size into an image, painting a board is then one drawImage per
+// visible cell. After a move the tiles slide to their new cells, then merged and
+// spawned tiles pop in, driven by a 60 fps timer. A new board ends the running
+// animation, so input never waits for it.
+public final class BoardCanvas extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+
+    // CONSTANTS
+    private static final int FRAME_MILLIS = 16;
+    private static final long SLIDE_NANOS = 90_000_000L;
+    private static final long POP_NANOS = 90_000_000L;
+
+    // Cells smaller than this are not animated, smaller than TEXT_CELL get no number
+    private static final int ANIMATED_CELL = 12;
+    private static final int TEXT_CELL = 16;
+
+    private static final Color GRID = new Color(0xBB, 0xAD, 0xA0);
+    private static final Color DARK_TEXT = new Color(0x40, 0x40, 0x40);
+
+    private static final byte STILL = 0;
+    private static final byte MERGED = 1;
+    private static final byte SPAWNED = 2;
+
+    // FIELDS
+    private final int columns;
+    private final int rows;
+    // Color of a tile by exponent
+    private final IntFunction<Color> palette;
+
+    // Exponents on screen once the animation is over, and as they were before it
+    private final int[] shown;
+    private final int[] before;
+    // Tile the replay moved into each cell, merged if two landed there
+    private final int[] landed;
+
+    // Tile k of the running animation slides from cell movingFrom[k] to movingTo[k]
+    private int[] movingFrom;
+    private int[] movingTo;
+    private int[] movingValue;
+    private int moving;
+    private final byte[] popping;
+    private boolean animating;
+    private long animationStart;
+    private final Timer timer;
+
+    private final HashMap<Integer, BufferedImage> glyphs = new HashMap<>();
+    private int glyphSize;
+
+    public BoardCanvas(int columns, int rows, IntFunction<Color> palette) {
+        Useful.require(columns > 0 && rows > 0 && palette != null);
+        this.columns = columns;
+        this.rows = rows;
+        this.palette = palette;
+        shown = new int[columns * rows];
+        before = new int[columns * rows];
+        landed = new int[columns * rows];
+        popping = new byte[columns * rows];
+        movingFrom = new int[16];
+        movingTo = new int[16];
+        movingValue = new int[16];
+        timer = new Timer(FRAME_MILLIS, e -> tick());
+        setOpaque(true);
+    }
+
+    // METHODS
+
+    // Takes the changed cells from a state of the game, must be called on the EDT
+    public void show(GameState game, ChangeSet changes) {
+        Useful.require(game.getWidth() == columns && game.getHeight() == rows);
+        System.arraycopy(shown, 0, before, 0, shown.length);
+        if (changes.isEverything()) {
+            for (int cell = 0; cell < shown.length; ++cell) {
+                shown[cell] = game.getExponent(cell / columns, cell % columns);
+            }
+        } else {
+            for (int k = 0; k < changes.size(); ++k) {
+                int cell = changes.get(k);
+                shown[cell] = game.getExponent(cell / columns, cell % columns);
+            }
+        }
+
+        if (!changes.isEverything() && changes.getDirection() != null && cellSize() >= ANIMATED_CELL
+                && deriveSlides(changes.getDirection())) {
+            animating = true;
+            animationStart = System.nanoTime();
+            timer.start();
+            repaint();
+        } else {
+            stopAnimation();
+            if (changes.isEverything()) {
+                repaint();
+            } else {
+                for (int k = 0; k < changes.size(); ++k) {
+                    repaintCell(changes.get(k));
+                }
+            }
+        }
+    }
+
+    // Replays the move on the old tiles to find where every tile went. Cells of the
+    // new board that the replay left empty hold spawned tiles. Returns false when the
+    // replay does not explain the new board, for instance after several coalesced moves.
+    private boolean deriveSlides(Direction d) {
+        stopAnimation();
+        clearSlides();
+        boolean horizontal = d == Direction.LEFT || d == Direction.RIGHT;
+        boolean reversed = d == Direction.RIGHT || d == Direction.DOWN;
+        int lines = horizontal ? rows : columns;
+        int length = horizontal ? columns : rows;
+        boolean moved = false;
+
+        for (int line = 0; line < lines; ++line) {
+            int end = 0;
+            int last = 0;
+            for (int k = 0; k < length; ++k) {
+                int cell = cellOf(line, k, horizontal, reversed, length);
+                int value = before[cell];
+                if (value == 0) {
+                    continue;
+                }
+                int target;
+                if (value == last && value < Game.MAX_EXPONENT) {
+                    target = cellOf(line, end - 1, horizontal, reversed, length);
+                    last = 0;
+                } else {
+                    target = cellOf(line, end, horizontal, reversed, length);
+                    last = value;
+                    ++end;
+                }
+                addMoving(cell, target, value);
+                moved |= target != cell;
+            }
+        }
+
+        // Checks the replay against the new board, spawns go where the replay left a hole
+        Arrays.fill(landed, 0);
+        for (int k = 0; k < moving; ++k) {
+            int to = movingTo[k];
+            if (landed[to] != 0) {
+                ++landed[to];
+                popping[to] = MERGED;
+            } else {
+                landed[to] = movingValue[k];
+            }
+        }
+        for (int cell = 0; cell < shown.length; ++cell) {
+            if (landed[cell] == shown[cell]) {
+                continue;
+            }
+            if (landed[cell] != 0 || !isSpawn(shown[cell])) {
+                clearSlides();
+                return false;
+            }
+            popping[cell] = SPAWNED;
+        }
+        if (!moved) {
+            clearSlides();
+        }
+        return moved;
+    }
+
+    private void clearSlides() {
+        moving = 0;
+        Arrays.fill(popping, STILL);
+    }
+
+    private static boolean isSpawn(int exponent) {
+        return exponent == Game.exponentOf(Game.BASE) || exponent == Game.exponentOf(Game.NEXT_BASE);
+    }
+
+    // Cell of position k in a line, counted from the wall the tiles move to
+    private int cellOf(int line, int k, boolean horizontal, boolean reversed, int length) {
+        int position = reversed ? length - 1 - k : k;
+        return horizontal ? line * columns + position : position * columns + line;
+    }
+
+    private void addMoving(int from, int to, int value) {
+        if (moving == movingFrom.length) {
+            movingFrom = Arrays.copyOf(movingFrom, moving * 2);
+            movingTo = Arrays.copyOf(movingTo, moving * 2);
+            movingValue = Arrays.copyOf(movingValue, moving * 2);
+        }
+        movingFrom[moving] = from;
+        movingTo[moving] = to;
+        movingValue[moving] = value;
+        ++moving;
+    }
+
+    private void tick() {
+        if (!animating || System.nanoTime() - animationStart >= SLIDE_NANOS + POP_NANOS) {
+            stopAnimation();
+        }
+        repaint();
+    }
+
+    private void stopAnimation() {
+        if (animating) {
+            animating = false;
+            timer.stop();
+            clearSlides();
+            repaint();
+        }
+    }
+
+    private int cellSize() {
+        return Math.max(1, Math.min(getWidth() / columns, getHeight() / rows));
+    }
+
+    private int originX(int cell) {
+        return (getWidth() - cell * columns) / 2;
+    }
+
+    private int originY(int cell) {
+        return (getHeight() - cell * rows) / 2;
+    }
+
+    private void repaintCell(int cell) {
+        int size = cellSize();
+        repaint(originX(size) + (cell % columns) * size, originY(size) + (cell / columns) * size, size, size);
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics;
+        int size = cellSize();
+        int x0 = originX(size);
+        int y0 = originY(size);
+        int gap = size >= TEXT_CELL ? Math.max(1, size / 16) : 0;
+        int tile = size - 2 * gap;
+        if (tile != glyphSize) {
+            glyphs.clear();
+            glyphSize = tile;
+        }
+
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        g.setColor(GRID);
+        g.fillRect(x0, y0, size * columns, size * rows);
+
+        // Only the cells inside the clip are drawn
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        int firstColumn = Math.max(0, (clip.x - x0) / size);
+        int lastColumn = Math.min(columns - 1, (clip.x + clip.width - x0) / size);
+        int firstRow = Math.max(0, (clip.y - y0) / size);
+        int lastRow = Math.min(rows - 1, (clip.y + clip.height - y0) / size);
+
+        long elapsed = animating ? System.nanoTime() - animationStart : Long.MAX_VALUE;
+        if (elapsed < SLIDE_NANOS) {
+            // Empty cells below, the old tiles on their way on top
+            BufferedImage empty = glyph(0);
+            for (int i = firstRow; i <= lastRow; ++i) {
+                for (int j = firstColumn; j <= lastColumn; ++j) {
+                    g.drawImage(empty, x0 + j * size + gap, y0 + i * size + gap, null);
+                }
+            }
+            double t = ease((double) elapsed / SLIDE_NANOS);
+            for (int k = 0; k < moving; ++k) {
+                int from = movingFrom[k];
+                int to = movingTo[k];
+                double x = (from % columns) + ((to % columns) - (from % columns)) * t;
+                double y = (from / columns) + ((to / columns) - (from / columns)) * t;
+                g.drawImage(glyph(movingValue[k]), x0 + (int) Math.round(x * size) + gap,
+                        y0 + (int) Math.round(y * size) + gap, null);
+            }
+            return;
+        }
+
+        double pop = animating ? (double) (elapsed - SLIDE_NANOS) / POP_NANOS : 1;
+        for (int i = firstRow; i <= lastRow; ++i) {
+            for (int j = firstColumn; j <= lastColumn; ++j) {
+                int cell = i * columns + j;
+                int x = x0 + j * size + gap;
+                int y = y0 + i * size + gap;
+                byte kind = animating ? popping[cell] : STILL;
+                if (kind == STILL) {
+                    g.drawImage(glyph(shown[cell]), x, y, null);
+                    continue;
+                }
+                // Merged tiles swell and settle back, spawned tiles grow from the middle
+                double scale = kind == MERGED ? 1 + 0.15 * Math.sin(Math.PI * pop) : pop;
+                int scaled = (int) Math.round(tile * scale);
+                int offset = (tile - scaled) / 2;
+                g.drawImage(glyph(0), x, y, null);
+                g.drawImage(glyph(shown[cell]), x + offset, y + offset, scaled, scaled, null);
+            }
+        }
+    }
+
+    private static double ease(double t) {
+        return 1 - (1 - t) * (1 - t);
+    }
+
+    // The prerendered tile for an exponent at the current size
+    private BufferedImage glyph(int exponent) {
+        BufferedImage image = glyphs.get(exponent);
+        if (image == null) {
+            image = renderGlyph(exponent, Math.max(1, glyphSize));
+            glyphs.put(exponent, image);
+        }
+        return image;
+    }
+
+    // Tiles past MAX_INT_EXPONENT have too many digits for a cell and read as powers of two
+    private static String label(int exponent) {
+        return exponent <= Game.MAX_INT_EXPONENT ? Long.toString(Game.valueOf(exponent)) : "2^" + exponent;
+    }
+
+    private BufferedImage renderGlyph(int exponent, int tile) {
+        BufferedImage image = new BufferedImage(tile, tile, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            Color color = palette.apply(exponent);
+            g.setColor(color);
+            if (tile >= TEXT_CELL) {
+                int arc = tile / 6;
+                g.fillRoundRect(0, 0, tile, tile, arc, arc);
+            } else {
+                g.fillRect(0, 0, tile, tile);
+            }
+            if (exponent != 0 && tile >= TEXT_CELL) {
+                String text = label(exponent);
+                Font font = new Font(Font.SANS_SERIF, Font.BOLD, tile / 2);
+                FontMetrics metrics = g.getFontMetrics(font);
+                while (metrics.stringWidth(text) > tile * 0.85 && font.getSize() > 6) {
+                    font = font.deriveFont(font.getSize2D() - 1);
+                    metrics = g.getFontMetrics(font);
+                }
+                g.setFont(font);
+                g.setColor(isLight(color) ? DARK_TEXT : Color.WHITE);
+                int x = (tile - metrics.stringWidth(text)) / 2;
+                int y = (tile - metrics.getHeight()) / 2 + metrics.getAscent();
+                g.drawString(text, x, y);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static boolean isLight(Color color) {
+        return 0.299 * color.getRed() + 0.587 * color.getGreen() + 0.114 * color.getBlue() > 150;
+    }
+}
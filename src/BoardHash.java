@@ -0,0 +1,71 @@
+// Zobrist hashes of a board of any size, one per transform of Symmetries: the
+// hash under transform t is the xor of a random key per (cell t moves the tile
+// to, exponent) over the tiles. A changed cell updates every hash with two xors
+// of keys, so a move costs what it changed, not the size of the board. The keys
+// are computed by mixing the cell and exponent instead of read from a table,
+// which for a large board would not fit the cache.
+// Transforming a board permutes its hashes, so the smallest of them, the
+// canonical hash, is the same for every board equal up to a transform and keys
+// caches and deduplication of Game boards, for example in a LongMap.
+public final class BoardHash {
+
+    private final int width;
+    private final int height;
+    private final long[] hashes;
+
+    public BoardHash(int width, int height) {
+        Useful.require(width > 0 && height > 0);
+        this.width = width;
+        this.height = height;
+        this.hashes = new long[Symmetries.count(width, height)];
+    }
+
+    // Hashes the board of an engine from scratch
+    public static BoardHash of(Engine game) {
+        BoardHash hash = new BoardHash(game.getWidth(), game.getHeight());
+        for (int i = 0; i < game.getHeight(); ++i) {
+            for (int j = 0; j < game.getWidth(); ++j) {
+                hash.update(i * game.getWidth() + j, 0, game.getExponent(i, j));
+            }
+        }
+        return hash;
+    }
+
+    // The tile of a cell went from exponent before to after, 0 for empty
+    public void update(int cell, int before, int after) {
+        if (before == after) {
+            return;
+        }
+        int i = cell / width;
+        int j = cell - i * width;
+        for (int t = 0; t < hashes.length; ++t) {
+            int moved = Symmetries.map(t, i, j, width, height);
+            hashes[t] ^= key(moved, before) ^ key(moved, after);
+        }
+    }
+
+    // Hash of the board as it stands
+    public long get() {
+        return hashes[0];
+    }
+
+    public long canonical() {
+        long min = hashes[0];
+        for (int t = 1; t < hashes.length; ++t) {
+            if (Long.compareUnsigned(hashes[t], min) < 0) {
+                min = hashes[t];
+            }
+        }
+        return min;
+    }
+
+    public void copyFrom(BoardHash other) {
+        Useful.require(other.width == width && other.height == height, "Boards differ in size");
+        System.arraycopy(other.hashes, 0, hashes, 0, hashes.length);
+    }
+
+    // Empty cells add nothing, so the empty board hashes to 0
+    private static long key(int cell, int exponent) {
+        return exponent == 0 ? 0 : GameRandom.mix64(((long) cell << 6 | exponent) * GameRandom.GOLDEN_GAMMA);
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+// Cells whose value changed since the observer was last notified, as indices
+// i * width + j, together with the direction of the last move. A cell that
+// changed and changed back may still be listed. A bitmap keeps every cell in
+// the list once, so clearing and reading cost only what changed.
+// Marking everything stands for a change of the whole board.
+public final class ChangeSet {
+
+    private final int width;
+    private final int height;
+    private final long[] marked;
+    private int[] cells;
+    private int count;
+    private boolean everything;
+    private Direction direction;
+
+    public ChangeSet(int width, int height) {
+        Useful.require(width > 0 && height > 0);
+        this.width = width;
+        this.height = height;
+        this.marked = new long[(width * height + 63) >>> 6];
+        this.cells = new int[16];
+        this.count = 0;
+        this.everything = false;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Direction of the last move, null when the board changed without one
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public void setDirection(Direction d) {
+        direction = d;
+    }
+
+    public boolean isEverything() {
+        return everything;
+    }
+
+    public void markEverything() {
+        everything = true;
+    }
+
+    public boolean isEmpty() {
+        return !everything && count == 0;
+    }
+
+    // Number of listed cells, meaningless when everything is marked
+    public int size() {
+        return count;
+    }
+
+    // The k-th changed cell, in the order they were added
+    public int get(int k) {
+        Useful.require(0 <= k && k < count);
+        return cells[k];
+    }
+
+    public boolean contains(int cell) {
+        return everything || (marked[cell >>> 6] & 1L << cell) != 0;
+    }
+
+    public void add(int i, int j) {
+        add(i * width + j);
+    }
+
+    public void add(int cell) {
+        long bit = 1L << cell;
+        int word = cell >>> 6;
+        if ((marked[word] & bit) == 0) {
+            marked[word] |= bit;
+            if (count == cells.length) {
+                cells = Arrays.copyOf(cells, count * 2);
+            }
+            cells[count++] = cell;
+        }
+    }
+
+    // Adds the changes of another set of the same dimensions
+    public void addAll(ChangeSet other) {
+        Useful.require(other.width == width && other.height == height);
+        if (other.everything) {
+            everything = true;
+        }
+        for (int k = 0; k < other.count; ++k) {
+            add(other.cells[k]);
+        }
+        if (other.direction != null) {
+            direction = other.direction;
+        }
+    }
+
+    public void clear() {
+        for (int k = 0; k < count; ++k) {
+            marked[cells[k] >>> 6] = 0;
+        }
+        count = 0;
+        everything = false;
+        direction = null;
+    }
+}
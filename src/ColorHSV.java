@@ -11,21 +11,16 @@ public final class ColorHSV {
     private static final int MAX_ALLOWED = (int)((1f- MIN_DARKNESS) / DELTA);
 
     private static final float INITIAL_H = 60;
-    private static int colorCount = 0;
+
+    // Tile colors by exponent, 0 is the empty cell. Built once, shared by every board.
+    private static final int PALETTE_SIZE = 32;
+    private static final java.awt.Color[] PALETTE = buildPalette();
 
     // FIELDS
     private final float h;
     private final float s;
     private final float v;
 
-    public ColorHSV() {
-        this(INITIAL_H);
-    }
-
-    private ColorHSV(float h) {
-        this(h, 1, 1);
-    }
-
     private ColorHSV(float h, float s, float v) {
         Useful.require(0<= h && h < MAX_ANGLE);
         Useful.require(0<= s && s <= 1);
@@ -35,15 +30,35 @@ public final class ColorHSV {
         this.v = v;
     }
 
-    public ColorHSV darker() {
-        ++colorCount;
-        if (colorCount == MAX_ALLOWED) {
-            colorCount = 0;
-            return new ColorHSV((h + ANGLE_CHANGE) % MAX_ANGLE);
+    // Each exponent is one shade darker than the one before, after MAX_ALLOWED
+    // shades the hue turns by ANGLE_CHANGE and starts bright again
+    public static ColorHSV ofExponent(int exponent) {
+        Useful.require(exponent >= 0);
+        if (exponent == 0) {
+            return WHITE;
         }
-        float sPrime = Math.max(s - DELTA, 0);
-        float vPrime = Math.max(v - DELTA, 0);
-        return new ColorHSV(h, sPrime, vPrime);
+        int step = exponent - 1;
+        float h = (INITIAL_H + (step / MAX_ALLOWED) * ANGLE_CHANGE) % MAX_ANGLE;
+        float sv = 1 - (step % MAX_ALLOWED) * DELTA;
+        return new ColorHSV(h, sv, sv);
+    }
+
+    // Array read, exponents past the palette share its last color
+    public static java.awt.Color colorOf(int exponent) {
+        return PALETTE[Math.min(exponent, PALETTE_SIZE - 1)];
+    }
+
+    // Color of a tile value, 0 for an empty cell
+    public static java.awt.Color colorOfValue(int value) {
+        return colorOf(value == 0 ? 0 : Integer.numberOfTrailingZeros(value / Game.BASE) + 1);
+    }
+
+    private static java.awt.Color[] buildPalette() {
+        java.awt.Color[] palette = new java.awt.Color[PALETTE_SIZE];
+        for (int e = 0; e < PALETTE_SIZE; ++e) {
+            palette[e] = ofExponent(e).toAwtColor();
+        }
+        return palette;
     }
 
     public java.awt.Color toAwtColor() {
@@ -94,4 +109,9 @@ public final class ColorHSV {
         }
         return false;
     }
+
+    @Override
+    public int hashCode() {
+        return java.util.Objects.hash(h, s, v);
+    }
 }
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+// An engine that several producers (keyboard, AI, network clients) may drive at once.
+// The engines themselves are not thread-safe, so only one writer thread touches this
+// one: producers queue commands, the writer applies each of them whole, one after the
+// other. After every batch of queued commands it publishes an immutable GameState
+// through a volatile field, so readers never lock, and notifies the observer once
+// with the cells the batch changed. The state copies only those cells. Futures
+// complete after the state that contains their command is published. Should the
+// writer fail, every command waiting for it fails and the game closes.
+public final class ConcurrentGame implements AutoCloseable {
+
+    private final Engine game;
+    private final Observer observer;
+    private final BlockingQueue<Command<?>> commands = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile GameState state;
+    private boolean closed;
+    private long version;
+
+    // Whether the engine told the forwarding observer about the last batch
+    private boolean published;
+
+    // The engine is built with an observer that publishes the state and forwards to
+    // the given one, which is called on the writer thread and may be null
+    public ConcurrentGame(Function<Observer, Engine> engineFactory, Observer o) {
+        observer = o;
+        game = engineFactory.apply(this::publish);
+        state = GameState.of(game, 0);
+        writer = new Thread(this::run, "2048-game");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int getWidth() {
+        return state.getWidth();
+    }
+
+    public int getHeight() {
+        return state.getHeight();
+    }
+
+    // The board after the last batch of commands, never blocks
+    public GameState getState() {
+        return state;
+    }
+
+    // Completes with the score gained, or Engine.UNCHANGED
+    public CompletableFuture<Long> move(Direction d) {
+        return submit(engine -> engine.move(d));
+    }
+
+    public CompletableFuture<Boolean> undo() {
+        return submit(Engine::undo);
+    }
+
+    public CompletableFuture<Boolean> redo() {
+        return submit(Engine::redo);
+    }
+
+    // Runs the command on the writer thread with the engine to itself. It must not
+    // keep the engine, nor notify its observer, the writer does that after the batch.
+    public synchronized <T> CompletableFuture<T> submit(Function<Engine, T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IllegalStateException("The game is closed"));
+            return result;
+        }
+        commands.add(new Command<>(command, result));
+        return result;
+    }
+
+    // Stops the writer once the queued commands are applied, later ones fail
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            commands.add(new Command<>(null, null));
+        }
+    }
+
+    private void run() {
+        List<Command<?>> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(commands.take());
+                commands.drainTo(batch);
+                boolean stop = false;
+                for (Command<?> command : batch) {
+                    if (command.action == null) {
+                        stop = true;
+                    } else {
+                        command.apply(game);
+                        ++version;
+                    }
+                }
+                // An engine without the observer never publishes
+                published = false;
+                game.notifyObserver();
+                if (!published) {
+                    state = state.next(game, null, version);
+                }
+                for (Command<?> command : batch) {
+                    command.complete();
+                }
+                batch.clear();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(batch, new IllegalStateException("The game thread was interrupted", e));
+        } catch (RuntimeException | Error e) {
+            fail(batch, e);
+            throw e;
+        }
+    }
+
+    // The engine notifies on the writer thread. Before the engine is built there
+    // is no state to follow, the constructor takes the first one whole.
+    private void publish(ChangeSet changes) {
+        if (state != null) {
+            state = state.next(game, changes, version);
+            published = true;
+        }
+        if (observer != null) {
+            observer.update(changes);
+        }
+    }
+
+    // The commands of the batch and those still queued fail, later ones are refused
+    private void fail(List<Command<?>> batch, Throwable cause) {
+        synchronized (this) {
+            closed = true;
+        }
+        commands.drainTo(batch);
+        for (Command<?> command : batch) {
+            if (command.result != null) {
+                command.result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private static final class Command<T> {
+        private final Function<Engine, T> action;
+        private final CompletableFuture<T> result;
+        private T value;
+        private RuntimeException failure;
+
+        Command(Function<Engine, T> action, CompletableFuture<T> result) {
+            this.action = action;
+            this.result = result;
+        }
+
+        void apply(Engine game) {
+            try {
+                value = action.apply(game);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if (result == null) {
+                return;
+            }
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+// Count-min sketch of long keys: every key is counted in one counter of each of
+// DEPTH rows, picked by a hash per row, and its estimate is the smallest of them.
+// Collisions only add, so an estimate never falls below the true count and is at
+// most total / width * e above it with probability 1 - e^-DEPTH. The size is fixed
+// however many keys are added, and two sketches of the same width add up.
+// Not thread-safe.
+public final class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private final long[] counts;
+    private final int mask;
+    private long total;
+
+    // Width is rounded up to a power of two
+    public CountMinSketch(int width) {
+        Useful.require(0 < width && width <= 1 << 24);
+        int columns = Integer.bitCount(width) == 1 ? width : Integer.highestOneBit(width) << 1;
+        counts = new long[DEPTH * columns];
+        mask = columns - 1;
+    }
+
+    public int width() {
+        return mask + 1;
+    }
+
+    // Sum of all counts added
+    public long total() {
+        return total;
+    }
+
+    public void add(long key, long count) {
+        Useful.require(count >= 0);
+        for (int row = 0; row < DEPTH; ++row) {
+            counts[slot(key, row)] += count;
+        }
+        total += count;
+    }
+
+    public long estimate(long key) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row) {
+            min = Math.min(min, counts[slot(key, row)]);
+        }
+        return min;
+    }
+
+    public void merge(CountMinSketch other) {
+        Useful.require(other.counts.length == counts.length, "Sketches differ in width");
+        for (int k = 0; k < counts.length; ++k) {
+            counts[k] += other.counts[k];
+        }
+        total += other.total;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        total = 0;
+    }
+
+    // Rows hash with different seeds of the SplitMix64 finalizer
+    private int slot(long key, int row) {
+        long h = GameRandom.mix64(key + (row + 1) * GameRandom.GOLDEN_GAMMA);
+        return row * (mask + 1) + ((int) h & mask);
+    }
+}
@@ -0,0 +1,23 @@
+public enum Direction {
+    UP, DOWN, LEFT, RIGHT;
+
+    private static final Direction[] VALUES = values();
+
+    // Bit of this direction in a legal move mask
+    public int mask() {
+        return 1 << ordinal();
+    }
+
+    public boolean isIn(int mask) {
+        return (mask & mask()) != 0;
+    }
+
+    // Shared copy of values(), which clones its array on every call
+    public static Direction of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.Arrays;
+
+// Set of cell indices (i * width + j) with O(1) add, remove, membership and random pick.
+// The members are packed at the front of cells, slots maps a cell back to its place.
+public final class EmptyCells {
+
+    private static final int ABSENT = -1;
+
+    private final int[] cells;
+    private final int[] slots;
+    private int count;
+
+    public EmptyCells(int capacity) {
+        cells = new int[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, ABSENT);
+        count = 0;
+    }
+
+    public EmptyCells(EmptyCells other) {
+        cells = other.cells.clone();
+        slots = other.slots.clone();
+        count = other.count;
+    }
+
+    // Takes over the members of a set of the same capacity, without allocating
+    public void copyFrom(EmptyCells other) {
+        Useful.require(other.cells.length == cells.length);
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        System.arraycopy(other.slots, 0, slots, 0, slots.length);
+        count = other.count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean contains(int cell) {
+        return slots[cell] != ABSENT;
+    }
+
+    // The k-th member, in no particular order
+    public int get(int k) {
+        Useful.require(0 <= k && k < count);
+        return cells[k];
+    }
+
+    public void add(int cell) {
+        if (slots[cell] == ABSENT) {
+            cells[count] = cell;
+            slots[cell] = count;
+            ++count;
+        }
+    }
+
+    // Moves the last member into the freed slot
+    public void remove(int cell) {
+        int slot = slots[cell];
+        if (slot != ABSENT) {
+            int last = cells[--count];
+            cells[slot] = last;
+            slots[last] = slot;
+            slots[cell] = ABSENT;
+        }
+    }
+}
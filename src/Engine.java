@@ -0,0 +1,52 @@
+// Common surface of the game engines so that GameFrame can drive any of them
+public interface Engine extends Subject {
+
+    // Returned by move when the board did not change
+    int UNCHANGED = -1;
+
+    int getWidth();
+
+    int getHeight();
+
+    long getScore();
+
+    // Moves that changed the board so far
+    int getMoveCount();
+
+    // Tile exponent, 0 for an empty cell, 1 for BASE, 2 for NEXT_BASE ...
+    int getExponent(int i, int j);
+
+    int getHighestExponent();
+
+    // Tiles of this exponent no longer merge, see Game.MAX_EXPONENT
+    int getMaxExponent();
+
+    // Tile values, only for tiles that fit an int, see Game.MAX_INT_EXPONENT
+    int getNum(int i, int j);
+
+    int getHighestTile();
+
+    boolean isOver();
+
+    void moveLeft(boolean enable);
+
+    void moveRight(boolean enable);
+
+    void moveUp(boolean enable);
+
+    void moveDown(boolean enable);
+
+    // Steps through the undo history without notifying the observer, false when
+    // there is nothing to undo or redo
+    boolean undo();
+
+    boolean redo();
+
+    // Headless simulation API, none of these notify the observer
+
+    long move(Direction d);
+
+    int legalMoves();
+
+    Engine copy();
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// Expectimax player for 4x4 boards. Player moves are max nodes, the random BASE or
+// NEXT_BASE spawn (even odds, as in Game) after each move is a chance node.
+// Chance node values are cached in a shared TranspositionTable under the canonical
+// board, so that the rotations and reflections of a board share one entry (the
+// heuristic scores every row and column alike both ways), and branches whose
+// probability drops below PROBABILITY_CUTOFF are evaluated instead of searched.
+// The root is split into one task per (move, spawn) pair on a fork join pool.
+public final class Expectimax {
+
+    public static final int MAX_DEPTH = 16;
+
+    private static final float PROBABILITY_CUTOFF = 0.0001f;
+    private static final int DEFAULT_TABLE_MEGABYTES = 64;
+
+    // Nodes between two looks at the clock
+    private static final int CHECK_INTERVAL = 1 << 10;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final Heuristic heuristic;
+    private final TranspositionTable table;
+    private final ForkJoinPool pool;
+    private final LongAdder nodes = new LongAdder();
+    private volatile int lastDepth;
+
+    public Expectimax() {
+        this(Heuristic.DEFAULT, DEFAULT_TABLE_MEGABYTES);
+    }
+
+    public Expectimax(Heuristic heuristic, int tableMegabytes) {
+        this(heuristic, tableMegabytes, ForkJoinPool.commonPool());
+    }
+
+    public Expectimax(Heuristic heuristic, int tableMegabytes, ForkJoinPool pool) {
+        Useful.require(heuristic != null && pool != null);
+        this.heuristic = heuristic;
+        this.table = new TranspositionTable(tableMegabytes);
+        this.pool = pool;
+    }
+
+    // Nodes visited by all searches so far
+    public long getNodeCount() {
+        return nodes.sum();
+    }
+
+    // Deepest search completed by the last call of bestMoveWithin
+    public int getLastDepth() {
+        return lastDepth;
+    }
+
+    public Direction bestMove(Engine game, int depth) {
+        return bestMove(BitboardGame.pack(game), depth);
+    }
+
+    public Direction bestMoveWithin(Engine game, long millis) {
+        return bestMoveWithin(BitboardGame.pack(game), millis);
+    }
+
+    // Searches depth player moves ahead, returns null when no move is legal
+    public Direction bestMove(long board, int depth) {
+        Useful.require(1 <= depth && depth <= MAX_DEPTH);
+        return search(board, depth, NO_DEADLINE);
+    }
+
+    // Deepens one ply at a time and returns the answer of the deepest search that
+    // finished within millis. A one ply search always completes.
+    public Direction bestMoveWithin(long board, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        Direction best = search(board, 1, NO_DEADLINE);
+        int depth = 1;
+        try {
+            while (best != null && depth < MAX_DEPTH && System.nanoTime() < deadline) {
+                best = search(board, depth + 1, deadline);
+                ++depth;
+            }
+        } catch (Timeout e) {
+            // Keep the answer of the last complete search
+        }
+        lastDepth = depth;
+        return best;
+    }
+
+    // Value of every move by ordinal searched depth player moves ahead, -1 for the
+    // moves that do not change the board
+    public float[] evaluateMoves(long board, int depth) {
+        Useful.require(1 <= depth && depth <= MAX_DEPTH);
+        return moveValues(board, depth, NO_DEADLINE);
+    }
+
+    private Direction search(long board, int depth, long deadline) {
+        float[] values = moveValues(board, depth, deadline);
+        int best = -1;
+        for (int k = 0; k < values.length; ++k) {
+            if (values[k] >= 0 && (best < 0 || values[k] > values[best])) {
+                best = k;
+            }
+        }
+        return best < 0 ? null : Direction.of(best);
+    }
+
+    private float[] moveValues(long board, int depth, long deadline) {
+        List<SpawnTask> tasks = new ArrayList<>();
+        float[] values = new float[Direction.count()];
+
+        for (int k = 0; k < Direction.count(); ++k) {
+            long next = BitboardGame.move(board, Direction.of(k));
+            if (next == board) {
+                values[k] = -1;
+                continue;
+            }
+            if (depth == 1) {
+                values[k] = heuristic.evaluate(next);
+                continue;
+            }
+            float probability = 0.5f / BitboardGame.countEmpty(next);
+            for (int shift = 0; shift < 64; shift += 4) {
+                if (((next >>> shift) & 0xF) == 0) {
+                    tasks.add(new SpawnTask(k, next | 1L << shift, depth - 1, probability, deadline));
+                    tasks.add(new SpawnTask(k, next | 2L << shift, depth - 1, probability, deadline));
+                }
+            }
+        }
+        if (!tasks.isEmpty()) {
+            pool.invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    invokeAll(tasks);
+                    return null;
+                }
+            });
+            for (SpawnTask task : tasks) {
+                values[task.move] += task.join() * task.probability;
+            }
+        }
+        return values;
+    }
+
+    private static final class Timeout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final Timeout INSTANCE = new Timeout();
+
+        private Timeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Value of one spawn after one root move, weighted by the caller
+    private final class SpawnTask extends RecursiveTask<Float> {
+        private static final long serialVersionUID = 1L;
+
+        private final int move;
+        private final long board;
+        private final int depth;
+        private final float probability;
+        private final long deadline;
+        private int visited;
+
+        private SpawnTask(int move, long board, int depth, float probability, long deadline) {
+            this.move = move;
+            this.board = board;
+            this.depth = depth;
+            this.probability = probability;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected Float compute() {
+            try {
+                return max(board, depth, probability);
+            } finally {
+                nodes.add(visited);
+            }
+        }
+
+        private float max(long b, int plies, float p) {
+            if (++visited % CHECK_INTERVAL == 0 && deadline != NO_DEADLINE && System.nanoTime() > deadline) {
+                throw Timeout.INSTANCE;
+            }
+            float best = 0;
+            for (int k = 0; k < Direction.count(); ++k) {
+                long next = BitboardGame.move(b, Direction.of(k));
+                if (next != b) {
+                    best = Math.max(best, chance(next, plies - 1, p));
+                }
+            }
+            return best;
+        }
+
+        private float chance(long b, int plies, float p) {
+            if (plies == 0 || p < PROBABILITY_CUTOFF) {
+                ++visited;
+                return heuristic.evaluate(b);
+            }
+            long key = Symmetries.canonical4x4(b);
+            float cached = table.get(key, plies);
+            if (cached != TranspositionTable.MISS) {
+                return cached;
+            }
+
+            int empty = BitboardGame.countEmpty(b);
+            float spawn = p / empty * 0.5f;
+            float sum = 0;
+            for (int shift = 0; shift < 64; shift += 4) {
+                if (((b >>> shift) & 0xF) == 0) {
+                    sum += max(b | 1L << shift, plies, spawn);
+                    sum += max(b | 2L << shift, plies, spawn);
+                }
+            }
+            float value = sum / (2 * empty);
+            table.put(key, plies, value);
+            return value;
+        }
+    }
+}
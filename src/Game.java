@@ -1,330 +1,1095 @@
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
 
-public final class Game implements Subject {
+public final class Game implements Engine {
 
     public static final int BASE = 2;
     public static final int NEXT_BASE = 2 * BASE;
 
-    private static final Random RAND = new Random();
+    // The board holds exponents, a value only appears when it is shown. Two tiles
+    // of MAX_EXPONENT do not merge, so every tile and score fits a long.
+    public static final int MAX_EXPONENT = 62;
+    // Largest exponent whose value fits an int, see getNum
+    public static final int MAX_INT_EXPONENT = 30;
+
+    // Saved state, see writeTo. Format 1 had an int score.
+    private static final int FORMAT = 2;
+    private static final int OLD_FORMAT = 1;
+    private static final int STATE_HEADER_BYTES = 1 + 2 * Integer.BYTES + 1 + Long.BYTES + Integer.BYTES + 2 * Long.BYTES;
+    private static final int NIBBLE_EXPONENT = 15;
+
+    // Undo history of observed games, headless games keep none
+    public static final long DEFAULT_HISTORY_BYTES = 16L * 1024 * 1024;
 
     // Fields
-    private final int size;
-    private int[][] matrix;
+    private final int width;
+    private final int height;
+    private byte[][] matrix;
     private final Observer observer;
-    private HashSet<Position> emptyCells;
-    private int score;
-    private boolean rowsMovable;
-    private boolean colsMovable;
+    private final ChangeSet changes;
+    private final EmptyCells emptyCells;
+    private long score;
+    private MoveExecutor executor;
+    private final GameRandom rand;
+    private final long seed;
+    private int moveCount;
+    private MoveLog log;
+    // Cell of the tile spawned last, -1 when the board was set some other way
+    private int lastSpawn = -1;
+    // Whether the board and the order of the free list are as the seed dealt them.
+    // Spawns pick a cell by its place in that list, and an undo or a load rebuilds it
+    // in another order, so only a pristine game replays from its seed.
+    private boolean pristine;
+    // Zobrist hashes of the board, null until asked for
+    private BoardHash hash;
+
+    // Score gained per row, or per block of columns, during the current move and
+    // whether each row or column changed, gathered once all lines are done
+    private final long[] lineScores;
+    private final boolean[] lineChanged;
+
+    // The whole board as it was before the current move, row by row
+    private final byte[] previous;
+
+    // Vertical moves walk the matrix row by row and keep, for every column, the
+    // next free row and the tile at the end of the column that may still merge
+    private static final int COLUMN_BLOCK = 64;
+    private final int columnBlocks;
+    private final int[] columnEnd;
+    private final int[] columnLast;
+
+    // Equal neighbours inside each row and each column, and their total.
+    // Together with the empty cells they decide isOver without a board scan.
+    private final int[] rowPairs;
+    private final int[] colPairs;
+    private int pairCount;
+    private boolean over;
+
+    // Line kernels, created once so that moves do not allocate
+    private final IntConsumer rowLeft = this::moveRowLeft;
+    private final IntConsumer rowRight = this::moveRowRight;
+    private final IntConsumer columnsUp = this::moveColumnsUp;
+    private final IntConsumer columnsDown = this::moveColumnsDown;
+
+    // Undo history, null when it is off. A snapshot holds the rows of a board by
+    // reference: rows a move did not change are shared between snapshots and
+    // with the matrix, only changed rows are copied. A row that history shares
+    // is never written, the game swaps in a copy first.
+    private ArrayDeque<Snapshot> undoHistory;
+    private ArrayDeque<Snapshot> redoHistory;
+    private long historyBudget;
+    private long historyBytes;
+    private boolean[] rowShared;
+    // Per row, whether the last slide changed it and the shared array that held it
+    private boolean[] rowMoved;
+    private byte[][] detached;
 
     // Constructors
     public Game(int s, Observer o) {
-        size = s;
-        observer = o;
-        matrix = new int[size][size];
-        emptyCells = new HashSet<>();
-        score = 0;
-        rowsMovable = true;
-        colsMovable = true;
+        this(s, s, o);
+    }
+
+    public Game(int w, int h, Observer o) {
+        this(w, h, o, MoveExecutor.SEQUENTIAL, new GameRandom());
+    }
+
+    public Game(int s, Observer o, MoveExecutor e) {
+        this(s, s, o, e, new GameRandom());
+    }
 
-        updateEmptyCellInfo();
+    // Headless game for simulations, the same seed always deals the same tiles
+    public Game(int s, long seed) {
+        this(s, s, seed);
+    }
+
+    public Game(int w, int h, long seed) {
+        this(w, h, null, MoveExecutor.SEQUENTIAL, new GameRandom(seed));
+    }
+
+    // The game takes ownership of the generator, its state at this point is the seed
+    public Game(int w, int h, Observer o, MoveExecutor e, GameRandom r) {
+        this(w, h, o, e, r, o == null ? 0 : DEFAULT_HISTORY_BYTES);
+    }
+
+    // As above with an undo history of about historyBytes, 0 for none. Without a
+    // history nothing is allocated for it, see setHistoryBudget.
+    public Game(int w, int h, Observer o, MoveExecutor e, GameRandom r, long historyBytes) {
+        this(w, h, o, e, r, r.getState(), historyBytes);
         generateRandomCell();
         generateRandomCell();
+        pristine = true;
+        if (changes != null) {
+            changes.markEverything();
+        }
     }
 
-    // Private copy constructor for simulation purposes
-    // it will only be used to check whether the game is over
-    private Game(Game other) {
-        this.observer = null;
-        this.size = other.size;
-        this.matrix = new int[size][size];
-        this.emptyCells = new HashSet<>();
+    // An empty board, the caller places the tiles
+    private Game(int w, int h, Observer o, MoveExecutor e, GameRandom r, long seed, long historyBytes) {
+        Useful.require(w > 0 && h > 0 && (long) w * h >= 2 && (long) w * h <= Integer.MAX_VALUE,
+                "Invalid board size " + w + "x" + h);
+        width = w;
+        height = h;
+        observer = o;
+        changes = o == null ? null : new ChangeSet(w, h);
+        executor = e;
+        rand = r;
+        this.seed = seed;
+        columnBlocks = (width + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        lineScores = new long[Math.max(height, columnBlocks)];
+        lineChanged = new boolean[Math.max(height, width)];
+        previous = new byte[width * height];
+        columnEnd = new int[width];
+        columnLast = new int[width];
+        rowPairs = new int[height];
+        colPairs = new int[width];
+        matrix = new byte[height][width];
+        emptyCells = new EmptyCells(width * height);
+        score = 0;
 
-        for (int i = 0; i < size; ++i) {
-            for (int j = 0; j < size; ++j) {
-                this.matrix[i][j] = other.matrix[i][j];
-            }
+        for (int cell = 0; cell < width * height; ++cell) {
+            emptyCells.add(cell);
         }
+        Useful.require(historyBytes >= 0);
+        if (historyBytes > 0) {
+            setHistoryBudget(historyBytes);
+        }
+    }
 
-        for (Position pos: other.emptyCells) {
-            this.emptyCells.add(pos);
+    // Copy constructor for simulation purposes. The copy has no observer and
+    // does not record, its generator continues where the original's stands.
+    Game(Game other) {
+        this.observer = null;
+        this.changes = null;
+        this.width = other.width;
+        this.height = other.height;
+        this.executor = other.executor;
+        this.rand = new GameRandom(other.rand);
+        this.seed = other.seed;
+        this.moveCount = other.moveCount;
+        this.lastSpawn = other.lastSpawn;
+        this.pristine = other.pristine;
+        this.columnBlocks = other.columnBlocks;
+        this.lineScores = new long[other.lineScores.length];
+        this.lineChanged = new boolean[other.lineChanged.length];
+        this.previous = new byte[width * height];
+        this.columnEnd = new int[width];
+        this.columnLast = new int[width];
+        this.rowPairs = other.rowPairs.clone();
+        this.colPairs = other.colPairs.clone();
+        this.pairCount = other.pairCount;
+        this.over = other.over;
+        this.matrix = new byte[height][width];
+        this.emptyCells = new EmptyCells(other.emptyCells);
+        this.score = other.score;
+
+        for (int i = 0; i < height; ++i) {
+            System.arraycopy(other.matrix[i], 0, this.matrix[i], 0, width);
+        }
+        if (other.hash != null) {
+            this.hash = new BoardHash(width, height);
+            this.hash.copyFrom(other.hash);
         }
     }
 
     //Methods
-    public int getScore() {
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getScore() {
         return score;
     }
 
-    public int getNum(int i, int j) {
-        return matrix[i][j];
+    // Seed that dealt the first tiles of this game
+    public long getSeed() {
+        return seed;
     }
 
-    public boolean isOver() {
-        if (!colsMovable && !rowsMovable) {
-            return true;
-        }
-        if (emptyCells.isEmpty()) {
-            Game simulation = new Game(this);
-            simulation.moveLeft(false);
-            simulation.moveRight(false);
-            simulation.moveUp(false);
-            simulation.moveDown(false);
-            simulation.updateEmptyCellInfo();
-            return simulation.emptyCells.isEmpty();
-        }
-        return false;
+    // Moves that changed the board so far
+    public int getMoveCount() {
+        return moveCount;
     }
 
-    public int getHighestTile() {
-        int max = Integer.MIN_VALUE;
-        for (int  i = 0; i < size; ++i) {
-            for (int  j = 0; j < size; ++j) {
-                max = Math.max(max, matrix[i][j]);
-            }
+    // Cell i * width + j of the tile the last move spawned, -1 after an undo or a load
+    public int getLastSpawn() {
+        return lastSpawn;
+    }
+
+    // Hashes of the board, see BoardHash. The first call hashes the whole board,
+    // from then on every move updates the hashes of the cells it changed.
+    public BoardHash getHash() {
+        if (hash == null) {
+            hash = BoardHash.of(this);
         }
-        return max;
+        return hash;
     }
 
-    @Override
-    public void notifyObserver() {
-        observer.update();
+    // Starts logging the moves of this game so that it can be replayed from its seed.
+    // Only a new game can record, not one that was loaded or went back by undo.
+    public MoveLog startRecording() {
+        Useful.require(moveCount == 0, "Recording has to start before the first move");
+        Useful.require(pristine, "An undone or loaded game can not be replayed from its seed");
+        log = new MoveLog(width, height, seed);
+        return log;
     }
 
-    public void moveLeft(boolean enable) {
-        if (!Useful.allRowsMovable(matrix)) {
-            rowsMovable = false;
-            notifyObserver();
+    public MoveLog getLog() {
+        return log;
+    }
+
+    // Undo history is kept within about this many bytes, the oldest moves are
+    // forgotten first. 0 turns it off and drops the history.
+    public void setHistoryBudget(long bytes) {
+        Useful.require(bytes >= 0);
+        historyBudget = bytes;
+        if (bytes == 0) {
+            undoHistory = null;
+            redoHistory = null;
+            rowShared = null;
+            rowMoved = null;
+            detached = null;
+            historyBytes = 0;
             return;
         }
-        rowsMovable = true;
-
-        Thread[] threads = new Thread[size];
-        for(int i = 0; i < size; ++i) {
-            int row = i;
-            threads[i] = new Thread(() -> {
-                moveRowLeft(row);
-            });
-            threads[i].start();
+        if (undoHistory == null) {
+            undoHistory = new ArrayDeque<>();
+            redoHistory = new ArrayDeque<>();
+            rowShared = new boolean[height];
+            rowMoved = new boolean[height];
+            detached = new byte[height][];
         }
-        Useful.waitThreads(threads);
-        postMoveActions(enable);
+        evict();
     }
 
-    public void moveRight(boolean enable) {
-        if (!Useful.allRowsMovable(matrix)) {
-            rowsMovable = false;
-            notifyObserver();
-            return;
+    public long getHistoryBudget() {
+        return historyBudget;
+    }
+
+    // Bytes the undo history is charged for and its number of moves, for the checks
+    long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    int getUndoDepth() {
+        return undoHistory == null ? 0 : undoHistory.size();
+    }
+
+    // A move log can not take moves back, so a recording game has no undo
+    public boolean canUndo() {
+        return undoHistory != null && !undoHistory.isEmpty() && log == null;
+    }
+
+    public boolean canRedo() {
+        return redoHistory != null && !redoHistory.isEmpty() && log == null;
+    }
+
+    // Goes back to the board before the last move, its score, move count and
+    // generator included. Does not notify the observer.
+    public boolean undo() {
+        if (!canUndo()) {
+            return false;
         }
-        rowsMovable = true;
+        redoHistory.push(capture());
+        Snapshot last = undoHistory.pollLast();
+        historyBytes -= last.bytes;
+        restore(last);
+        return true;
+    }
 
-        Thread[] threads = new Thread[size];
-        for(int i = 0; i < size; ++i) {
-            int row = i;
-            threads[i] = new Thread(() -> {
-                moveRowRight(row);
-            });
-            threads[i].start();
+    // Plays again the last move taken back, a new move forgets what could be redone
+    public boolean redo() {
+        if (!canRedo()) {
+            return false;
         }
-        Useful.waitThreads(threads);
-        postMoveActions(enable);
+        push(capture());
+        restore(redoHistory.pop());
+        return true;
     }
 
-    public void moveUp(boolean enable) {
-        if (!Useful.allColsMovable(matrix)) {
-            colsMovable = false;
-            notifyObserver();
-            return;
+    public MoveExecutor getMoveExecutor() {
+        return executor;
+    }
+
+    public void setMoveExecutor(MoveExecutor e) {
+        Useful.require(e != null);
+        executor = e;
+    }
+
+    public int getExponent(int i, int j) {
+        return matrix[i][j];
+    }
+
+    public int getNum(int i, int j) {
+        return toInt(matrix[i][j]);
+    }
+
+    public boolean isOver() {
+        if (Metrics.ENABLED) {
+            long start = System.nanoTime();
+            boolean result = over;
+            Metrics.IS_OVER.record(System.nanoTime() - start);
+            return result;
         }
-        colsMovable = true;
+        return over;
+    }
 
-        Thread[] threads = new Thread[size];
-        for(int j = 0; j < size; ++j) {
-            int col = j;
-            threads[j] = new Thread(() -> {
-                moveColumnUp(col);
-            });
-            threads[j].start();
+    public Game copy() {
+        return new Game(this);
+    }
+
+    // Overwrites this game with the state of another one of the same size without
+    // allocating, so that searches can reuse their boards. The generator continues
+    // where the other's stands. Observer, executor and log stay as they are, a game
+    // with undo history can not be overwritten.
+    void copyFrom(Game other) {
+        Useful.require(other.width == width && other.height == height, "Boards differ in size");
+        Useful.require(undoHistory == null, "A game with undo history can not be overwritten");
+        for (int i = 0; i < height; ++i) {
+            System.arraycopy(other.matrix[i], 0, matrix[i], 0, width);
+        }
+        emptyCells.copyFrom(other.emptyCells);
+        System.arraycopy(other.rowPairs, 0, rowPairs, 0, height);
+        System.arraycopy(other.colPairs, 0, colPairs, 0, width);
+        pairCount = other.pairCount;
+        over = other.over;
+        score = other.score;
+        moveCount = other.moveCount;
+        lastSpawn = other.lastSpawn;
+        pristine = other.pristine;
+        rand.setState(other.rand.getState());
+        if (hash != null && other.hash != null) {
+            hash.copyFrom(other.hash);
+        } else if (hash != null) {
+            hash = BoardHash.of(this);
+        }
+        if (changes != null) {
+            changes.markEverything();
         }
-        Useful.waitThreads(threads);
-        postMoveActions(enable);
     }
 
-    public void moveDown(boolean enable) {
-        if (!Useful.allColsMovable(matrix)) {
-            colsMovable = false;
-            notifyObserver();
+    // Restarts the generator, so that copies of one game deal different tiles
+    void reseed(long state) {
+        rand.setState(state);
+    }
+
+    // Size of the saved state in bytes
+    public int encodedLength() {
+        return STATE_HEADER_BYTES + packedLength(cellBits());
+    }
+
+    // Saves the game at the buffer's position: byte format, int width, int height,
+    // byte bits per cell, long score, int move count, long seed, long generator
+    // state, then the exponents row by row. They take 4 bits per cell, the first
+    // cell of a byte in its low nibble, or 8 bits once a tile needs more.
+    public void writeTo(ByteBuffer buffer) {
+        int bits = cellBits();
+        buffer.put((byte) FORMAT)
+                .putInt(width)
+                .putInt(height)
+                .put((byte) bits)
+                .putLong(score)
+                .putInt(moveCount)
+                .putLong(seed)
+                .putLong(rand.getState());
+        if (bits == Byte.SIZE) {
+            for (int i = 0; i < height; ++i) {
+                byte[] row = matrix[i];
+                for (int j = 0; j < width; ++j) {
+                    buffer.put(row[j]);
+                }
+            }
             return;
         }
-        colsMovable = true;
-
-        Thread[] threads = new Thread[size];
-        for(int j = 0; j < size; ++j) {
-            int col = j;
-            threads[j] = new Thread(() -> {
-                moveColumnDown(col);
-            });
-            threads[j].start();
+        // Sixteen cells are gathered in a long, lowest nibble first, and written at once
+        boolean reverse = buffer.order() == ByteOrder.BIG_ENDIAN;
+        long word = 0;
+        int shift = 0;
+        for (int i = 0; i < height; ++i) {
+            byte[] row = matrix[i];
+            for (int j = 0; j < width; ++j) {
+                word |= (long) row[j] << shift;
+                shift += 4;
+                if (shift == Long.SIZE) {
+                    buffer.putLong(reverse ? Long.reverseBytes(word) : word);
+                    word = 0;
+                    shift = 0;
+                }
+            }
+        }
+        for (; shift > 0; shift -= Byte.SIZE, word >>>= Byte.SIZE) {
+            buffer.put((byte) word);
         }
-        Useful.waitThreads(threads);
-        postMoveActions(enable);
     }
 
-    private void moveRowLeft(int rowNum) {
-        // Remove zeros
-        ArrayList<Integer> list = Useful.toArrayList(matrix[rowNum]);
-        list.removeIf(x -> x == 0);
+    // Reads a game saved by writeTo from the buffer's position. The restored game
+    // continues the saved generator, so it deals the same values, but the order of
+    // the empty cell list is not saved and the tiles may land in other cells than
+    // they would have in the original. It does not record. Reads format 1 as well.
+    public static Game readFrom(ByteBuffer buffer, Observer o, MoveExecutor e) {
+        int format = buffer.get();
+        Useful.require(format == FORMAT || format == OLD_FORMAT, "Unknown game format");
+        int w = buffer.getInt();
+        int h = buffer.getInt();
+        int bits = buffer.get();
+        long score = format == OLD_FORMAT ? buffer.getInt() : buffer.getLong();
+        int moveCount = buffer.getInt();
+        long seed = buffer.getLong();
+        long state = buffer.getLong();
+        Useful.require(bits == 4 || bits == Byte.SIZE, "Corrupt saved game");
+        Useful.require(score >= 0 && moveCount >= 0 && w > 0 && h > 0, "Corrupt saved game");
+        Useful.require(buffer.remaining() >= ((long) w * h * bits + Byte.SIZE - 1) / Byte.SIZE, "Truncated saved game");
+
+        Game game = new Game(w, h, o, e, new GameRandom(state), seed, o == null ? 0 : DEFAULT_HISTORY_BYTES);
+        game.score = score;
+        game.moveCount = moveCount;
+        int mask = (1 << bits) - 1;
+        int packed = 0;
+        int available = 0;
+        for (int i = 0; i < h; ++i) {
+            byte[] row = game.matrix[i];
+            for (int j = 0; j < w; ++j) {
+                if (available == 0) {
+                    packed = buffer.get() & 0xFF;
+                    available = Byte.SIZE;
+                }
+                int exponent = packed & mask;
+                packed >>>= bits;
+                available -= bits;
+                Useful.require(exponent <= MAX_EXPONENT, "Corrupt saved game");
+                row[j] = (byte) exponent;
+            }
+        }
+        game.recount();
+        if (game.changes != null) {
+            game.changes.markEverything();
+        }
+        return game;
+    }
 
-        // Collapsing Algorithm
-        collapse(list);
+    public static Game fromBytes(byte[] bytes, Observer o, MoveExecutor e) {
+        return readFrom(ByteBuffer.wrap(bytes), o, e);
+    }
 
-        //Remove zeros again
-        list.removeIf(x -> x == 0);
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        writeTo(buffer);
+        return buffer.array();
+    }
 
-        // Pad zeros to the end
-        Useful.appendZeros(list, size);
+    private int cellBits() {
+        return getHighestExponent() <= NIBBLE_EXPONENT ? 4 : Byte.SIZE;
+    }
 
-        // Set the array row accordingly
-        Useful.setMatrixRow(matrix, rowNum, list);
+    private int packedLength(int bits) {
+        return (int) (((long) width * height * bits + Byte.SIZE - 1) / Byte.SIZE);
     }
 
-    private void moveRowRight(int rowNum) {
-        // Remove zeros
-        ArrayList<Integer> list = Useful.toArrayList(matrix[rowNum]);
-        list.removeIf(x -> x == 0);
+    // Value of a tile, 0 for an empty cell
+    public static long valueOf(int exponent) {
+        return exponent == 0 ? 0 : (long) BASE << (exponent - 1);
+    }
 
-        // Collapsing Algorithm
-        reverseCollapse(list);
+    // Value of a tile that has to fit an int
+    public static int toInt(int exponent) {
+        Useful.require(exponent <= MAX_INT_EXPONENT, "Tile does not fit an int, read its exponent");
+        return (int) valueOf(exponent);
+    }
 
-        //Remove zeros again
-        list.removeIf(x -> x == 0);
+    public static int exponentOf(long value) {
+        return value == 0 ? 0 : Long.numberOfTrailingZeros(value / BASE) + 1;
+    }
 
-        // Pad zeros to the beginning
-        Useful.prependZeros(list, size);
+    // Rebuilds the empty cells, pair counts and over flag from the matrix
+    private void recount() {
+        pairCount = 0;
+        Arrays.fill(colPairs, 0);
+        for (int i = 0; i < height; ++i) {
+            byte[] row = matrix[i];
+            byte[] upper = i > 0 ? matrix[i - 1] : null;
+            rowPairs[i] = 0;
+            for (int j = 0; j < width; ++j) {
+                int cell = i * width + j;
+                if (row[j] == 0) {
+                    emptyCells.add(cell);
+                } else {
+                    emptyCells.remove(cell);
+                }
+                if (j > 0 && isPair(row[j - 1], row[j])) {
+                    ++rowPairs[i];
+                }
+                if (upper != null && isPair(upper[j], row[j])) {
+                    ++colPairs[j];
+                }
+            }
+            pairCount += rowPairs[i];
+        }
+        for (int j = 0; j < width; ++j) {
+            pairCount += colPairs[j];
+        }
+        over = emptyCells.isEmpty() && pairCount == 0;
+    }
 
-        // Set the array row accordingly
-        Useful.setMatrixRow(matrix, rowNum, list);
+    // Mask of the directions that would change the board, see Direction.mask
+    public int legalMoves() {
+        int horizontal = Direction.LEFT.mask() | Direction.RIGHT.mask();
+        int vertical = Direction.UP.mask() | Direction.DOWN.mask();
+        int mask = 0;
+        for (int i = 0; i < height && (mask & horizontal) != horizontal; ++i) {
+            byte[] row = matrix[i];
+            for (int j = 0; j < width - 1; ++j) {
+                mask |= pairMoves(row[j], row[j + 1], MAX_EXPONENT, Direction.LEFT, Direction.RIGHT);
+            }
+        }
+        // Compares whole neighbouring rows so that the matrix is read row by row
+        for (int i = 0; i < height - 1 && (mask & vertical) != vertical; ++i) {
+            byte[] upper = matrix[i];
+            byte[] lower = matrix[i + 1];
+            for (int j = 0; j < width; ++j) {
+                mask |= pairMoves(upper[j], lower[j], MAX_EXPONENT, Direction.UP, Direction.DOWN);
+            }
+        }
+        return mask;
     }
 
-    private void moveColumnUp(int colNum) {
-        // Remove zeros
-        ArrayList<Integer> list = Useful.listFromColumn(matrix, colNum);
-        list.removeIf(x -> x == 0);
+    public boolean isLegal(Direction d) {
+        return d.isIn(legalMoves());
+    }
 
-        // Collapsing Algorithm
-        collapse(list);
+    public int getMaxExponent() {
+        return MAX_EXPONENT;
+    }
 
-        //Remove zeros again
-        list.removeIf(x -> x == 0);
+    public int getHighestExponent() {
+        int max = 0;
+        for (int  i = 0; i < height; ++i) {
+            for (int  j = 0; j < width; ++j) {
+                max = Math.max(max, matrix[i][j]);
+            }
+        }
+        return max;
+    }
 
-        // Pad zeros to the end
-        Useful.appendZeros(list, size);
+    public int getHighestTile() {
+        return toInt(getHighestExponent());
+    }
 
-        // Set the array column accordingly
-        Useful.setMatrixColumn(matrix, colNum, list);
+    // Passes the cells changed since the last notification, then forgets them
+    @Override
+    public void notifyObserver() {
+        // Simulations have no observer
+        if (observer != null) {
+            observer.update(changes);
+            changes.clear();
+        }
     }
 
-    private void moveColumnDown(int colNum) {
-        // Remove zeros
-        ArrayList<Integer> list = Useful.listFromColumn(matrix, colNum);
-        list.removeIf(x -> x == 0);
+    // Plays a move without notifying the observer. A tile is spawned only when
+    // the board changed. Returns the score gained, or UNCHANGED.
+    public long move(Direction d) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        long gained = slide(d);
+        if (gained != UNCHANGED) {
+            if (undoHistory != null) {
+                rememberPrevious(gained);
+            }
+            ++moveCount;
+            if (log != null) {
+                log.record(d);
+            }
+            long spawnStart = Metrics.ENABLED ? System.nanoTime() : 0;
+            generateRandomCell();
+            if (Metrics.ENABLED) {
+                Metrics.SPAWN.record(System.nanoTime() - spawnStart);
+            }
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(d, System.nanoTime() - start);
+        }
+        return gained;
+    }
 
-        // Collapsing Algorithm
-        reverseCollapse(list);
+    public void moveLeft(boolean enable) {
+        play(Direction.LEFT, enable);
+    }
 
-        //Remove zeros again
-        list.removeIf(x -> x == 0);
+    public void moveRight(boolean enable) {
+        play(Direction.RIGHT, enable);
+    }
 
-        // Pad zeros to the beginning
-        Useful.prependZeros(list, size);
+    public void moveUp(boolean enable) {
+        play(Direction.UP, enable);
+    }
 
-        // Set the array column accordingly
-        Useful.setMatrixColumn(matrix, colNum, list);
+    public void moveDown(boolean enable) {
+        play(Direction.DOWN, enable);
     }
 
-    private void postMoveActions(boolean enable) {
+    // Without enable the tiles only slide, nothing is spawned and nobody is notified
+    private void play(Direction d, boolean enable) {
         if (enable) {
-            updateEmptyCellInfo();
-            generateRandomCell();
+            move(d);
             notifyObserver();
+        } else {
+            slide(d);
         }
     }
 
-    private void updateEmptyCellInfo() {
-        for (int  i = 0; i < size; ++i) {
-            for (int  j = 0; j < size; ++j) {
-                if (matrix[i][j] == 0) {
-                    emptyCells.add(new Position(i, j));
+    private long slide(Direction d) {
+        boolean rows = d == Direction.LEFT || d == Direction.RIGHT;
+        IntConsumer kernel;
+        switch (d) {
+            case LEFT: kernel = rowLeft; break;
+            case RIGHT: kernel = rowRight; break;
+            case UP: kernel = columnsUp; break;
+            default: kernel = columnsDown; break;
+        }
+        int tasks = rows ? height : columnBlocks;
+        executor.execute(tasks, kernel);
+
+        long gained = 0;
+        for (int t = 0; t < tasks; ++t) {
+            gained += lineScores[t];
+            lineScores[t] = 0;
+        }
+        boolean changed = false;
+        int lines = rows ? height : width;
+        for (int line = 0; line < lines && !changed; ++line) {
+            changed = lineChanged[line];
+        }
+        if (changed) {
+            if (rows) {
+                updateRows();
+            } else {
+                updateColumns();
+            }
+            Arrays.fill(lineChanged, 0, lines, false);
+            over = emptyCells.isEmpty() && pairCount == 0;
+            if (changes != null) {
+                changes.setDirection(d);
+            }
+            if (rowShared != null) {
+                detachRows();
+            }
+        }
+        score += gained;
+        return changed ? gained : UNCHANGED;
+    }
+
+    // After a horizontal move: compares every changed row with its copy from before
+    // the move, so only cells that changed touch the empty cell and change sets.
+    // Pairs inside the row are recounted, pairs with the row below are corrected.
+    private void updateRows() {
+        for (int i = 0; i < height; ++i) {
+            boolean changed = lineChanged[i];
+            boolean belowChanged = i < height - 1 && lineChanged[i + 1];
+            if (!changed && !belowChanged) {
+                continue;
+            }
+            byte[] row = matrix[i];
+            int base = i * width;
+            if (changed) {
+                int pairs = 0;
+                for (int j = 0; j < width; ++j) {
+                    updateCell(base + j, previous[base + j], row[j]);
+                    if (j > 0 && isPair(row[j - 1], row[j])) {
+                        ++pairs;
+                    }
+                }
+                pairCount += pairs - rowPairs[i];
+                rowPairs[i] = pairs;
+            }
+            if (i < height - 1) {
+                byte[] lower = matrix[i + 1];
+                for (int j = 0; j < width; ++j) {
+                    int delta = pairDelta(row[j], lower[j], previous[base + j], previous[base + width + j]);
+                    colPairs[j] += delta;
+                    pairCount += delta;
                 }
             }
         }
-        emptyCells.removeIf(p -> matrix[p.x][p.y] != 0);
     }
 
-    private void generateRandomCell() {
-        if (!emptyCells.isEmpty()) {
-            int len = emptyCells.size();
-            int random = RAND.nextInt(len);
-            int i = 0;
-            Position p = null;
-            for (Position pos : emptyCells) {
-                if (i == random) {
-                    p = pos;
-                    break;
+    // After a vertical move: the same bookkeeping for the changed columns, still
+    // reading the matrix row by row
+    private void updateColumns() {
+        for (int i = 0; i < height; ++i) {
+            byte[] row = matrix[i];
+            byte[] lower = i < height - 1 ? matrix[i + 1] : null;
+            int base = i * width;
+            int rowDelta = 0;
+            for (int j = 0; j < width; ++j) {
+                if (lineChanged[j]) {
+                    updateCell(base + j, previous[base + j], row[j]);
+                    if (lower != null) {
+                        int delta = pairDelta(row[j], lower[j], previous[base + j], previous[base + width + j]);
+                        colPairs[j] += delta;
+                        pairCount += delta;
+                    }
+                }
+                if (j < width - 1 && (lineChanged[j] || lineChanged[j + 1])) {
+                    rowDelta += pairDelta(row[j], row[j + 1], previous[base + j], previous[base + j + 1]);
                 }
-                ++i;
             }
-            Useful.require(p != null);
-            Useful.require(matrix[p.x][p.y] == 0, p.x + "," + p.y + " " + matrix[p.x][p.y]);
+            rowPairs[i] += rowDelta;
+            pairCount += rowDelta;
+        }
+    }
+
+    // A slide writes the rows in place. Rows that history shares get their old
+    // tiles back from previous and the matrix continues with a copy.
+    private void detachRows() {
+        for (int i = 0; i < height; ++i) {
+            int base = i * width;
+            rowMoved[i] = !Arrays.equals(matrix[i], 0, width, previous, base, base + width);
+            detached[i] = null;
+            if (rowMoved[i] && rowShared[i]) {
+                byte[] row = matrix[i];
+                matrix[i] = row.clone();
+                System.arraycopy(previous, base, row, 0, width);
+                rowShared[i] = false;
+                detached[i] = row;
+            }
+        }
+    }
+
+    // Pushes the board from before the slide that just ran. Rows the slide left
+    // alone are shared with the matrix, only changed rows that history did not
+    // hold yet are copied from previous.
+    private void rememberPrevious(long gained) {
+        byte[][] rows = new byte[height][];
+        for (int i = 0; i < height; ++i) {
+            if (!rowMoved[i]) {
+                rows[i] = matrix[i];
+                rowShared[i] = true;
+            } else if (detached[i] != null) {
+                rows[i] = detached[i];
+                detached[i] = null;
+            } else {
+                rows[i] = Arrays.copyOfRange(previous, i * width, (i + 1) * width);
+            }
+        }
+        redoHistory.clear();
+        push(new Snapshot(rows, score - gained, moveCount, rand.getState()));
+    }
+
+    // The current board, from now on its rows are shared
+    private Snapshot capture() {
+        Arrays.fill(rowShared, true);
+        return new Snapshot(matrix.clone(), score, moveCount, rand.getState());
+    }
+
+    // A snapshot is charged for its row references and for the rows it does not
+    // share with the snapshot before it, so every row is counted once
+    private void push(Snapshot s) {
+        s.bytes = snapshotBytes() + rowBytes() * distinctRows(s, undoHistory.peekLast());
+        historyBytes += s.bytes;
+        undoHistory.addLast(s);
+        evict();
+    }
+
+    private void evict() {
+        while (historyBytes > historyBudget && !undoHistory.isEmpty()) {
+            Snapshot oldest = undoHistory.pollFirst();
+            historyBytes -= oldest.bytes;
+            Snapshot next = undoHistory.peekFirst();
+            if (next != null) {
+                // The rows both held are now charged to the next one
+                long shared = rowBytes() * (height - distinctRows(next, oldest));
+                next.bytes += shared;
+                historyBytes += shared;
+            }
+        }
+    }
 
-            matrix[p.x][p.y] = RAND.nextBoolean() ?  NEXT_BASE : BASE;
-            emptyCells.removeIf(pos -> matrix[pos.x][pos.y] != 0);
+    private int distinctRows(Snapshot s, Snapshot other) {
+        int count = 0;
+        for (int i = 0; i < height; ++i) {
+            if (other == null || s.rows[i] != other.rows[i]) {
+                ++count;
+            }
         }
+        return count;
+    }
+
+    // Array headers and references, as a 64 bit JVM with compressed pointers lays them out
+    private long snapshotBytes() {
+        return 32 + 16 + 4L * height;
+    }
+
+    private long rowBytes() {
+        return 16 + (width + 7L) / 8 * 8;
     }
 
-    private void collapse(ArrayList<Integer> list) {
-        for (int i = 0; i < list.size() - 1; ++i) {
-            int current = list.get(i);
-            if (current == list.get(i + 1)) {
-                int newValue = current << 1;
-                list.set(i, newValue);
-                list.set(i + 1, 0);
-                score += newValue;
+    // Jumps to a snapshot. Only rows that differ from the matrix by reference can
+    // differ in tiles, they are compared with their old tiles as after a move.
+    private void restore(Snapshot target) {
+        for (int i = 0; i < height; ++i) {
+            lineChanged[i] = matrix[i] != target.rows[i];
+        }
+        // updateRows reads the old tiles of the changed rows and of their neighbours
+        for (int i = 0; i < height; ++i) {
+            if (lineChanged[i] || (i > 0 && lineChanged[i - 1]) || (i < height - 1 && lineChanged[i + 1])) {
+                System.arraycopy(matrix[i], 0, previous, i * width, width);
             }
         }
+        for (int i = 0; i < height; ++i) {
+            if (lineChanged[i]) {
+                matrix[i] = target.rows[i];
+                rowShared[i] = true;
+            }
+        }
+        updateRows();
+        Arrays.fill(lineChanged, 0, height, false);
+        over = emptyCells.isEmpty() && pairCount == 0;
+        score = target.score;
+        moveCount = target.moveCount;
+        lastSpawn = -1;
+        pristine = false;
+        rand.setState(target.state);
+        if (changes != null) {
+            changes.setDirection(null);
+        }
     }
 
-    private void reverseCollapse(ArrayList<Integer> list) {
-        for (int i = list.size() - 1; i > 0; --i) {
-            int current = list.get(i);
-            if (current == list.get(i - 1)) {
-                int newValue = current << 1;
-                list.set(i, newValue);
-                list.set(i - 1, 0);
-                score += newValue;
+    private void updateCell(int cell, int before, int after) {
+        if (before == after) {
+            return;
+        }
+        if (changes != null) {
+            changes.add(cell);
+        }
+        if (hash != null) {
+            hash.update(cell, before, after);
+        }
+        if (before == 0) {
+            emptyCells.remove(cell);
+        } else if (after == 0) {
+            emptyCells.add(cell);
+        }
+    }
+
+    // Change in the number of pairs between two neighbouring cells
+    private static int pairDelta(int first, int second, int oldFirst, int oldSecond) {
+        return (isPair(first, second) ? 1 : 0) - (isPair(oldFirst, oldSecond) ? 1 : 0);
+    }
+
+    private static boolean isPair(int first, int second) {
+        return first != 0 && first == second && first < MAX_EXPONENT;
+    }
+
+    // The row kernels compact a row of exponents in place: end is the next cell to
+    // fill and last the tile just before it, as long as that tile may still merge.
+    // Tiles of MAX_EXPONENT never merge. A merge gains BASE << e, the value of
+    // exponent e + 1, written out because calling valueOf slowed the loops down.
+    private void moveRowLeft(int rowNum) {
+        byte[] row = matrix[rowNum];
+        System.arraycopy(row, 0, previous, rowNum * width, width);
+
+        int end = 0;
+        int last = 0;
+        long gained = 0;
+        boolean changed = false;
+        for (int j = 0; j < width; ++j) {
+            int e = row[j];
+            if (e == 0) {
+                continue;
+            }
+            if (e == last && e < MAX_EXPONENT) {
+                row[end - 1] = (byte) (e + 1);
+                gained += (long) BASE << e;
+                last = 0;
+                changed = true;
+            } else {
+                if (end != j) {
+                    row[end] = (byte) e;
+                    changed = true;
+                }
+                last = e;
+                ++end;
             }
         }
+        if (changed) {
+            Arrays.fill(row, end, width, (byte) 0);
+        }
+        lineScores[rowNum] = gained;
+        lineChanged[rowNum] = changed;
     }
 
-    // Inner immutable Position class
-    private static final class Position {
-        private final int x;
-        private final int y;
+    private void moveRowRight(int rowNum) {
+        byte[] row = matrix[rowNum];
+        System.arraycopy(row, 0, previous, rowNum * width, width);
 
-        private Position(int x, int y) {
-            this.x = x;
-            this.y = y;
+        int end = width - 1;
+        int last = 0;
+        long gained = 0;
+        boolean changed = false;
+        for (int j = width - 1; j >= 0; --j) {
+            int e = row[j];
+            if (e == 0) {
+                continue;
+            }
+            if (e == last && e < MAX_EXPONENT) {
+                row[end + 1] = (byte) (e + 1);
+                gained += (long) BASE << e;
+                last = 0;
+                changed = true;
+            } else {
+                if (end != j) {
+                    row[end] = (byte) e;
+                    changed = true;
+                }
+                last = e;
+                --end;
+            }
         }
+        if (changed) {
+            Arrays.fill(row, 0, end + 1, (byte) 0);
+        }
+        lineScores[rowNum] = gained;
+        lineChanged[rowNum] = changed;
+    }
 
-        @Override
-        public boolean equals(Object other) {
-            if (other instanceof Position) {
-                Position otherPos = (Position) other;
-                return x == otherPos.x && y == otherPos.y;
+    // The column kernels handle a block of COLUMN_BLOCK columns and sweep it from
+    // the top (up) or the bottom (down) one row at a time. A tile that moves is
+    // written to its column's end row, which has already been swept and saved.
+    private void moveColumnsUp(int block) {
+        int from = block * COLUMN_BLOCK;
+        int to = Math.min(width, from + COLUMN_BLOCK);
+        Arrays.fill(columnEnd, from, to, 0);
+        Arrays.fill(columnLast, from, to, 0);
+
+        long gained = 0;
+        for (int i = 0; i < height; ++i) {
+            byte[] row = matrix[i];
+            System.arraycopy(row, from, previous, i * width + from, to - from);
+            for (int j = from; j < to; ++j) {
+                int e = row[j];
+                if (e == 0) {
+                    continue;
+                }
+                if (e == columnLast[j] && e < MAX_EXPONENT) {
+                    matrix[columnEnd[j] - 1][j] = (byte) (e + 1);
+                    gained += (long) BASE << e;
+                    columnLast[j] = 0;
+                    row[j] = 0;
+                    lineChanged[j] = true;
+                } else {
+                    int end = columnEnd[j]++;
+                    if (end != i) {
+                        matrix[end][j] = (byte) e;
+                        row[j] = 0;
+                        lineChanged[j] = true;
+                    }
+                    columnLast[j] = e;
+                }
             }
-            return false;
+        }
+        lineScores[block] = gained;
+    }
+
+    private void moveColumnsDown(int block) {
+        int from = block * COLUMN_BLOCK;
+        int to = Math.min(width, from + COLUMN_BLOCK);
+        Arrays.fill(columnEnd, from, to, height - 1);
+        Arrays.fill(columnLast, from, to, 0);
+
+        long gained = 0;
+        for (int i = height - 1; i >= 0; --i) {
+            byte[] row = matrix[i];
+            System.arraycopy(row, from, previous, i * width + from, to - from);
+            for (int j = from; j < to; ++j) {
+                int e = row[j];
+                if (e == 0) {
+                    continue;
+                }
+                if (e == columnLast[j] && e < MAX_EXPONENT) {
+                    matrix[columnEnd[j] + 1][j] = (byte) (e + 1);
+                    gained += (long) BASE << e;
+                    columnLast[j] = 0;
+                    row[j] = 0;
+                    lineChanged[j] = true;
+                } else {
+                    int end = columnEnd[j]--;
+                    if (end != i) {
+                        matrix[end][j] = (byte) e;
+                        row[j] = 0;
+                        lineChanged[j] = true;
+                    }
+                    columnLast[j] = e;
+                }
+            }
+        }
+        lineScores[block] = gained;
+    }
+
+    // Package-private so that the benchmarks can measure it
+    void generateRandomCell() {
+        if (!emptyCells.isEmpty()) {
+            int cell = emptyCells.get(rand.nextInt(emptyCells.size()));
+            int i = cell / width;
+            int j = cell % width;
+            Useful.require(matrix[i][j] == 0, "Spawn on an occupied cell");
+
+            // Exponents of NEXT_BASE and BASE
+            byte value = (byte) (rand.nextBoolean() ? 2 : 1);
+            if (rowShared != null && rowShared[i]) {
+                matrix[i] = matrix[i].clone();
+                rowShared[i] = false;
+            }
+            matrix[i][j] = value;
+            lastSpawn = cell;
+            emptyCells.remove(cell);
+            if (changes != null) {
+                changes.add(cell);
+            }
+            if (hash != null) {
+                hash.update(cell, 0, value);
+            }
+
+            // The new tile can only pair up with its four neighbours
+            int horizontal = (j > 0 && matrix[i][j - 1] == value ? 1 : 0)
+                    + (j < width - 1 && matrix[i][j + 1] == value ? 1 : 0);
+            int vertical = (i > 0 && matrix[i - 1][j] == value ? 1 : 0)
+                    + (i < height - 1 && matrix[i + 1][j] == value ? 1 : 0);
+            rowPairs[i] += horizontal;
+            colPairs[j] += vertical;
+            pairCount += horizontal + vertical;
+            over = emptyCells.isEmpty() && pairCount == 0;
+        }
+    }
+
+    // Moves allowed by two neighbouring cells, toward is the direction from second to
+    // first. Tiles of maxExponent do not merge. Shared by the engines and GameState.
+    static int pairMoves(int first, int second, int maxExponent, Direction toward, Direction away) {
+        if (first == 0) {
+            return second == 0 ? 0 : toward.mask();
+        }
+        if (second == 0) {
+            return away.mask();
+        }
+        return first == second && first < maxExponent ? toward.mask() | away.mask() : 0;
+    }
+
+    // A board in the undo history, its rows are never written
+    private static final class Snapshot {
+        final byte[][] rows;
+        final long score;
+        final int moveCount;
+        final long state;
+        long bytes;
+
+        Snapshot(byte[][] rows, long score, int moveCount, long state) {
+            this.rows = rows;
+            this.score = score;
+            this.moveCount = moveCount;
+            this.state = state;
         }
     }
 }
@@ -1,85 +1,155 @@
-import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.GridLayout;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
+// The game runs on a thread of its own behind a ConcurrentGame, the EDT only
+// queues commands and paints the last published GameState. Keys never wait for
+// a move, so the window keeps up with any key repeat rate.
 public final class GameFrame extends JFrame implements KeyListener, Observer{
 
+    private static final long serialVersionUID = 1L;
+
     // CONSTANTS
     private static final int MIN_WIDTH = 504;
     private static final int MIN_HEIGHT = 574;
+    private static final long HINT_MILLIS = 200;
+    private static final long AUTO_PLAY_MILLIS = 50;
+    private static final int FRAME_MILLIS = 16;
+    // Arrow key moves waiting for the game thread, more are dropped
+    private static final int MAX_QUEUED_MOVES = 2;
+    // How long closing the window waits for the game thread to save
+    private static final long SAVE_MILLIS = 2000;
 
     // PROPERTIES
     private JPanel mainPanel;
     private JLabel label;
     private JPanel northPanel;
-    private JPanel centerPanel;
-    private JButton[][] buttons;
+    private BoardCanvas canvas;
     private Font font;
-    private Game game;
-    private final int size;
+    private final ConcurrentGame game;
+    private final int width;
+    private final int height;
+    private final Function<Observer, Engine> engineFactory;
+
+    // Cells changed since the last frame. update only collects them, the frame
+    // timer paints them, so a burst of moves costs one repaint per frame.
+    private final ChangeSet pending;
+    private final ChangeSet painting;
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final Timer frameTimer;
+    // Timing of the frames, EDT only
+    private long lastFrame;
+    // When the scheduled frame should be painted, for the EDT delay metric
+    private long frameDue;
+    private long shownScore;
 
-    private HashMap<Integer, ColorHSV> colorMap;
-    private ColorHSV darkest;
+    // Moves of the arrow keys not applied yet and the last of them, EDT only.
+    // A held key repeats its move only once the last one is applied, so the
+    // queue never runs ahead of the board.
+    private int queuedMoves;
+    private Direction lastQueued;
 
-    // Static high score variable
-    private static int highScore = 0;
+    // Best score of this session and of the record store, finished games are
+    // appended to the store of their board size. The stores are opened, read and
+    // written on RECORDS_THREAD only, highScore is read and written on the EDT.
+    private static long highScore = 0;
+    private static final Map<String, RecordStore> RECORDS = new HashMap<>();
+    private static final ExecutorService RECORDS_THREAD = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "2048-records");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Move count and score of the last finish appended, EDT only. An undo out of game
+    // over and another finish appends that game too, a redo back to the same finish not.
+    private int recordedMoves = -1;
+    private long recordedScore;
+    // Generated tablebases, the map holds null for sizes without one
+    private static final Map<String, Tablebase> TABLEBASES = new HashMap<>();
+
+    // The AI is shared by all frames, its transposition table is large
+    private static Expectimax solver;
+    private static MonteCarlo monteCarlo;
+    private static final ExecutorService AI_THREAD = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "2048-ai");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean autoPlay;
+    // Auto-play with Monte Carlo rollouts instead of expectimax
+    private boolean rollouts;
 
     public GameFrame() {
         this(4);
     }
 
     public GameFrame(int size) {
+        this(size, size);
+    }
+
+    // Continues the game saved when the last frame of this size was closed
+    public GameFrame(int width, int height) {
+        this(observer -> restoreOrCreate(width, height, observer));
+    }
+
+    public GameFrame(Function<Observer, Engine> engineFactory) {
         super("2048");
-        this.size = size;
-        buttons = new JButton[size][size];
+        this.engineFactory = engineFactory;
+        game = new ConcurrentGame(engineFactory, this);
+        width = game.getWidth();
+        height = game.getHeight();
+        pending = new ChangeSet(width, height);
+        painting = new ChangeSet(width, height);
+        frameTimer = new Timer(FRAME_MILLIS, e -> render());
+        frameTimer.setRepeats(false);
         mainPanel = new JPanel();
         northPanel = new JPanel();
-        centerPanel = new JPanel();
 
-        game = new Game(size, this);
-
-        highScore = Math.max(game.getScore(), highScore);
-        label = new JLabel( "Score: " + game.getScore() + "\t High Score: " + highScore);
+        CompletableFuture.supplyAsync(() -> {
+            RecordStore records = getRecords(width, height);
+            return records == null ? 0L : records.getHighScore();
+        }, RECORDS_THREAD).thenAccept(best -> SwingUtilities.invokeLater(() -> showHighScore(best)));
+        highScore = Math.max(game.getState().getScore(), highScore);
+        shownScore = game.getState().getScore();
+        label = new JLabel( "Score: " + shownScore + "\t High Score: " + highScore);
 
         northPanel.add(label);
-        centerPanel.setLayout(new GridLayout(size, size));
-        mainPanel.setLayout(new BorderLayout());
-        mainPanel.add(northPanel, BorderLayout.NORTH);
-        mainPanel.add(centerPanel,BorderLayout.CENTER);
-
-        colorMap = new HashMap<>();
-        darkest = new ColorHSV();
-        colorMap.put(0, ColorHSV.WHITE);
-        colorMap.put(Game.BASE, darkest);
-
-        darkest = darkest.darker();
-        colorMap.put(Game.NEXT_BASE, darkest);
 
         font = new Font("Roman", Font.BOLD, 25);
 
-        //Creating the buttons
-        for (int i = 0; i < buttons.length; ++i) {
-            for (int j = 0; j < buttons[0].length; ++j) {
-                int num = game.getNum(i, j);
-                String text = num == 0 ? "" : num + "";
-                buttons[i][j] = new JButton(text);
-                buttons[i][j].setFont(font);
-                buttons[i][j].setFocusable(false);
-                buttons[i][j].setBackground(colorMap.get(num).toAwtColor());
-                centerPanel.add(buttons[i][j]);
-            }
-        }
+        canvas = new BoardCanvas(width, height, ColorHSV::colorOf);
+        canvas.setBackground(Color.WHITE);
+        mainPanel.setLayout(new BorderLayout());
+        mainPanel.add(northPanel, BorderLayout.NORTH);
+        mainPanel.add(canvas, BorderLayout.CENTER);
 
         label.setFont(font);
         northPanel.setBackground(Color.CYAN);
@@ -99,45 +169,92 @@ public final class GameFrame extends JFrame implements KeyListener, Observer{
                     mainPanel.setPreferredSize(new Dimension(newWidth, newHeight));
                     pack();
                 }
-                int avg = (newWidth + newHeight) / 2;
-                font = font.deriveFont(avg / 10f);
-                for (int i = 0; i < buttons.length; ++i) {
-                    for (int j = 0; j < buttons[0].length; ++j) {
-                        buttons[i][j].setFont(font);
-                    }
-                }
             }
         });
 
         pack();
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // After the moves queued before. A game thread that is stuck or
+                // gone must not freeze the window, the wait is bounded.
+                try {
+                    game.submit(engine -> {
+                        save(engine);
+                        return null;
+                    }).get(SAVE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException ex) {
+                    System.err.println("The game was not saved: " + ex);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                game.close();
+            }
+        });
         setVisible(true);
+
+        // The canvas starts empty, hand it the whole board
+        pending.markEverything();
+        render();
     }
 
     // METHODS
+    // May be called from any thread, the game thread in particular. The changes
+    // are painted on the EDT, which also starts the timer.
     @Override
-    public void update() {
-        int highest = game.getHighestTile();
-        if (!colorMap.containsKey(highest)) {
-            darkest = darkest.darker();
-            colorMap.put(highest, darkest);
+    public void update(ChangeSet changes) {
+        synchronized (pending) {
+            pending.addAll(changes);
         }
-        for (int i = 0; i < size; ++i) {
-            for (int j = 0; j < size; ++j) {
-                int num = game.getNum(i, j);
-                String text = num == 0 ? "" : num + "";
-                buttons[i][j].setText(text);
-                ColorHSV hsv = colorMap.get(num);
-                Useful.require(hsv != null);
-                buttons[i][j].setBackground(hsv.toAwtColor());
+        if (frameScheduled.compareAndSet(false, true)) {
+            long requested = System.nanoTime();
+            if (SwingUtilities.isEventDispatchThread()) {
+                scheduleFrame(requested);
+            } else {
+                SwingUtilities.invokeLater(() -> scheduleFrame(requested));
             }
         }
-        if (game.isOver()) {
-            label.setText("Game Over. Press R to restart");
+    }
+
+    // Frames are at least FRAME_MILLIS apart. Nothing to do when the frame was
+    // painted in the meantime.
+    private void scheduleFrame(long requested) {
+        if (!frameScheduled.get()) {
+            return;
+        }
+        long delay = Math.max(0, FRAME_MILLIS - (requested - lastFrame) / 1_000_000);
+        frameDue = requested + delay * 1_000_000;
+        frameTimer.setInitialDelay((int) delay);
+        frameTimer.restart();
+    }
+
+    // Paints the pending changes, package-private so that the benchmarks can measure it
+    void render() {
+        boolean scheduled = frameScheduled.getAndSet(false);
+        lastFrame = System.nanoTime();
+        if (Metrics.ENABLED && scheduled) {
+            Metrics.EDT_DELAY.record(lastFrame - frameDue);
+        }
+        synchronized (pending) {
+            painting.addAll(pending);
+            pending.clear();
         }
-        else {
-            highScore = Math.max(game.getScore(), highScore);
-            label.setText( "Score: " + game.getScore() + "\t High Score: " + highScore);
+        GameState state = game.getState();
+        canvas.show(state, painting);
+        painting.clear();
+
+        if (state.isOver()) {
+            label.setText("Game Over. Press R to restart, U to undo");
+            record(state);
+        }
+        else if (state.getScore() != shownScore) {
+            shownScore = state.getScore();
+            highScore = Math.max(shownScore, highScore);
+            label.setText( "Score: " + shownScore + "\t High Score: " + highScore);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.RENDER.record(System.nanoTime() - lastFrame);
         }
     }
 
@@ -145,20 +262,320 @@ public final class GameFrame extends JFrame implements KeyListener, Observer{
     public void keyPressed(KeyEvent keyEvent) {
         int code = keyEvent.getKeyCode();
         if (code == KeyEvent.VK_R) {
+            autoPlay = false;
+            game.close();
             dispose();
-            new GameFrame(size);
+            new GameFrame(engineFactory);
+        }
+        else if (code == KeyEvent.VK_H) {
+            showHint();
+        }
+        else if (code == KeyEvent.VK_U || (code == KeyEvent.VK_Z && keyEvent.isControlDown() && !keyEvent.isShiftDown())) {
+            game.undo().thenAccept(moved -> SwingUtilities.invokeLater(() -> step(moved)));
+        }
+        else if (code == KeyEvent.VK_Y || (code == KeyEvent.VK_Z && keyEvent.isControlDown())) {
+            game.redo().thenAccept(moved -> SwingUtilities.invokeLater(() -> step(moved)));
+        }
+        else if (code == KeyEvent.VK_M) {
+            if (Metrics.ENABLED) {
+                System.out.print(Metrics.get().dump());
+            } else {
+                label.setText("Run with -Dgame2048.metrics=true");
+            }
+        }
+        else if (code == KeyEvent.VK_A || code == KeyEvent.VK_C) {
+            // A picks expectimax when it can, C always plays Monte Carlo rollouts
+            autoPlay = !autoPlay;
+            rollouts = code == KeyEvent.VK_C || !isPackable();
+            if (autoPlay) {
+                playAutomatically();
+            }
+        }
+        else if (code == KeyEvent.VK_UP) {
+            queueMove(Direction.UP);
+        } else if (code == KeyEvent.VK_DOWN) {
+            queueMove(Direction.DOWN);
+        } else if (code == KeyEvent.VK_RIGHT) {
+            queueMove(Direction.RIGHT);
+        } else if (code == KeyEvent.VK_LEFT) {
+            queueMove(Direction.LEFT);
+        }
+    }
+
+    // Drops the moves that would only pile up: a repeat of the last move while it
+    // waits, any beyond MAX_QUEUED_MOVES, and with none waiting, a move the board
+    // shows is not legal. The board of the state is only current then.
+    private void queueMove(Direction d) {
+        if (d == lastQueued || queuedMoves >= MAX_QUEUED_MOVES
+                || queuedMoves == 0 && !d.isIn(game.getState().getLegalMoves())) {
+            return;
         }
-        else if( !game.isOver()) {
-            if (code == KeyEvent.VK_UP) {
-                game.moveUp(true);
-            } else if (code == KeyEvent.VK_DOWN) {
-                game.moveDown(true);
-            } else if (code == KeyEvent.VK_RIGHT) {
-                game.moveRight(true);
-            } else if (code == KeyEvent.VK_LEFT) {
-                game.moveLeft(true);
+        ++queuedMoves;
+        lastQueued = d;
+        game.move(d).whenComplete((gained, failure) -> SwingUtilities.invokeLater(() -> {
+            if (--queuedMoves == 0) {
+                lastQueued = null;
             }
+        }));
+    }
+
+    // After an undo or redo: auto-play stops and the label is refreshed even if
+    // the score is the same, the game may no longer be over
+    private void step(boolean moved) {
+        if (!moved) {
+            return;
+        }
+        autoPlay = false;
+        shownScore = -1;
+        render();
+    }
+
+    // A tablebase answers on the game thread. Otherwise the search runs on the AI
+    // thread against a packed copy of the board. The answer is shown on the EDT.
+    private void showHint() {
+        Tablebase tablebase = getTablebase(width, height);
+        game.submit(engine -> {
+            Direction known = tablebase == null ? null : tablebase.getMove(engine);
+            if (known != null) {
+                showLater("Hint: " + known);
+            } else if (!isPackable()) {
+                showLater("Hints need a 4x4 board");
+            } else {
+                long board = BitboardGame.pack(engine);
+                AI_THREAD.execute(() -> {
+                    Direction d = getSolver().bestMoveWithin(board, HINT_MILLIS);
+                    showLater(d == null ? "No move left" : "Hint: " + d);
+                });
+            }
+            return null;
+        });
+    }
+
+    private void showLater(String text) {
+        SwingUtilities.invokeLater(() -> label.setText(text));
+    }
+
+    // The tablebase move is looked up and played in one command, so no key press
+    // comes in between. Boards it does not know are searched.
+    private void playAutomatically() {
+        if (rollouts) {
+            playRollouts();
+            return;
+        }
+        Tablebase tablebase = getTablebase(width, height);
+        if (tablebase == null) {
+            search();
+            return;
+        }
+        autoMove(tablebase::getMove, this::search, true);
+    }
+
+    private void search() {
+        if (!isPackable()) {
+            autoPlay = false;
+            label.setText("Auto-play needs a 4x4 board");
+            return;
+        }
+        game.submit(BitboardGame::pack).thenAccept(board -> AI_THREAD.execute(() -> {
+            Direction d = getSolver().bestMoveWithin(board, AUTO_PLAY_MILLIS);
+            SwingUtilities.invokeLater(() ->
+                    autoMove(engine -> BitboardGame.pack(engine) == board ? d : null, this::playAutomatically, false));
+        }));
+    }
+
+    // The rollouts run on a copy, the game thread keeps the game to itself
+    private void playRollouts() {
+        game.submit(engine -> engine instanceof Game ? ((Game) engine).copy() : null).thenAccept(root -> {
+            if (root == null) {
+                SwingUtilities.invokeLater(() -> {
+                    autoPlay = false;
+                    label.setText("Monte Carlo needs the standard engine");
+                });
+                return;
+            }
+            AI_THREAD.execute(() -> {
+                Direction d = getMonteCarlo().bestMoveWithin(root, AUTO_PLAY_MILLIS);
+                SwingUtilities.invokeLater(() ->
+                        autoMove(engine -> sameBoard(engine, root) ? d : null, this::playAutomatically, false));
+            });
+        });
+    }
+
+    // Plays the move choice picks on the game thread. It picks null when it has
+    // none for the board as it stands, a key press may have moved it since the
+    // search began, then otherwise runs. A played move is followed by the next
+    // one, after a pause when paced, a lookup takes no time.
+    private void autoMove(Function<Engine, Direction> choice, Runnable otherwise, boolean paced) {
+        if (!autoPlay || !isDisplayable()) {
+            autoPlay = false;
+            return;
+        }
+        game.submit(engine -> {
+            if (engine.isOver()) {
+                return null;
+            }
+            Direction d = choice.apply(engine);
+            return d != null && engine.move(d) != Engine.UNCHANGED;
+        }).thenAccept(moved -> SwingUtilities.invokeLater(() -> {
+            if (!autoPlay || !isDisplayable() || moved == null) {
+                autoPlay = false;
+            } else if (!moved) {
+                otherwise.run();
+            } else if (paced) {
+                Timer pause = new Timer((int) AUTO_PLAY_MILLIS, e -> playAutomatically());
+                pause.setRepeats(false);
+                pause.start();
+            } else {
+                playAutomatically();
+            }
+        }));
+    }
+
+    private static boolean sameBoard(Engine game, Engine other) {
+        for (int i = 0; i < game.getHeight(); ++i) {
+            for (int j = 0; j < game.getWidth(); ++j) {
+                if (game.getExponent(i, j) != other.getExponent(i, j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isPackable() {
+        return width == BitboardGame.SIZE && height == BitboardGame.SIZE;
+    }
+
+    // Saves a game in progress so that the next frame of this size continues it.
+    // Runs on the game thread.
+    private static void save(Engine game) {
+        if (!(game instanceof Game)) {
+            return;
+        }
+        Game saved = (Game) game;
+        Path path = savePath(saved.getWidth(), saved.getHeight());
+        try {
+            if (saved.isOver()) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            Files.createDirectories(path.getParent());
+            ByteBuffer buffer = ByteBuffer.allocate(saved.encodedLength());
+            saved.writeTo(buffer);
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("The game was not saved: " + e.getMessage());
+        }
+    }
+
+    // A saved game is used once, a frame restarted with R begins a new one
+    private static Engine restoreOrCreate(int width, int height, Observer observer) {
+        Path path = savePath(width, height);
+        if (Files.exists(path)) {
+            try {
+                byte[] bytes = Files.readAllBytes(path);
+                Files.delete(path);
+                Game game = Game.fromBytes(bytes, observer, MoveExecutor.SEQUENTIAL);
+                if (game.getWidth() == width && game.getHeight() == height) {
+                    return game;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("The saved game could not be restored: " + e.getMessage());
+            }
+        }
+        return new Game(width, height, observer);
+    }
+
+    // ~/.2048/save-WxH.bin
+    private static Path savePath(int width, int height) {
+        return Paths.get(System.getProperty("user.home"), ".2048", "save-" + width + "x" + height + ".bin");
+    }
+
+    // Appends a finished game to the record store once. The game thread copies the
+    // board, the records thread appends the copy. When an undo got to the game thread
+    // first nothing is appended, and the finish is forgotten so that it can be again.
+    private void record(GameState finished) {
+        if (finished.getMoveCount() == recordedMoves && finished.getScore() == recordedScore) {
+            return;
+        }
+        recordedMoves = finished.getMoveCount();
+        recordedScore = finished.getScore();
+        game.submit(engine -> engine.isOver() ? engine.copy() : null).thenAccept(board -> {
+            if (board == null) {
+                SwingUtilities.invokeLater(() -> recordedMoves = -1);
+                return;
+            }
+            CompletableFuture.supplyAsync(() -> {
+                RecordStore records = getRecords(width, height);
+                if (records == null) {
+                    return 0L;
+                }
+                records.append(board);
+                records.force();
+                return records.getHighScore();
+            }, RECORDS_THREAD).thenAccept(best -> SwingUtilities.invokeLater(() -> showHighScore(best)));
+        });
+    }
+
+    // EDT only, leaves a game over message in place
+    private void showHighScore(long best) {
+        highScore = Math.max(best, highScore);
+        if (!game.getState().isOver()) {
+            label.setText( "Score: " + shownScore + "\t High Score: " + highScore);
+        }
+    }
+
+    // Opened once per board size, null when the file can not be used. RECORDS_THREAD only.
+    private static RecordStore getRecords(int width, int height) {
+        String key = width + "x" + height;
+        if (!RECORDS.containsKey(key)) {
+            RecordStore records = null;
+            try {
+                records = RecordStore.open(RecordStore.defaultPath(width, height), width, height);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("High scores are not saved: " + e.getMessage());
+            }
+            RECORDS.put(key, records);
+        }
+        return RECORDS.get(key);
+    }
+
+    // Opened once per board size when TablebaseGenerator has written one
+    private static synchronized Tablebase getTablebase(int width, int height) {
+        String key = width + "x" + height;
+        if (!TABLEBASES.containsKey(key)) {
+            Tablebase tablebase = null;
+            Path file = Tablebase.defaultPath(width, height);
+            if (Tablebase.isPackable(width, height) && Files.exists(file)) {
+                try {
+                    tablebase = Tablebase.open(file);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Tablebase not used: " + e.getMessage());
+                }
+            }
+            TABLEBASES.put(key, tablebase);
+        }
+        return TABLEBASES.get(key);
+    }
+
+    private static synchronized Expectimax getSolver() {
+        if (solver == null) {
+            solver = new Expectimax();
+        }
+        return solver;
+    }
+
+    private static synchronized MonteCarlo getMonteCarlo() {
+        if (monteCarlo == null) {
+            monteCarlo = new MonteCarlo();
         }
+        return monteCarlo;
     }
 
     @Override
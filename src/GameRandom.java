@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// SplitMix64 generator (the algorithm behind java.util.SplittableRandom) with its
+// whole state in one visible long, so a game can be seeded, copied, saved and
+// replayed exactly. Not thread-safe: every game owns its generator.
+public final class GameRandom {
+
+    // Step of the state per draw
+    public static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // Hands out distinct seeds to generators that are not seeded explicitly
+    private static final AtomicLong SEEDER = new AtomicLong(mix64(System.nanoTime()));
+
+    private long state;
+
+    public GameRandom() {
+        this(mix64(SEEDER.getAndAdd(GOLDEN_GAMMA)));
+    }
+
+    public GameRandom(long seed) {
+        state = seed;
+    }
+
+    public GameRandom(GameRandom other) {
+        state = other.state;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public void setState(long s) {
+        state = s;
+    }
+
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    // Multiply-shift reduction, the bias is below bound / 2^32
+    public int nextInt(int bound) {
+        Useful.require(bound > 0);
+        return toInt(nextLong(), bound);
+    }
+
+    // Maps a draw to [0, bound) the way nextInt does, for callers that keep the state themselves
+    public static int toInt(long draw, int bound) {
+        return (int) (((draw >>> 32) * bound) >>> 32);
+    }
+
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+    // A new generator for another thread or game, seeded from this one
+    public GameRandom split() {
+        return new GameRandom(nextLong());
+    }
+
+    public static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Headless server on the loopback interface, one game per connection. A few
+// selector threads serve all connections, every connection belongs to one of
+// them, so its game is only ever touched by that thread. Messages are binary,
+// big-endian:
+//   NEW   int width, int height, long seed   answered by STATE
+//   MOVE  byte direction ordinal             answered by DELTA
+//   STATE int width, int height, long score, int move count, byte over, then one
+//         byte exponent per cell row by row (0 is empty, 1 is BASE ...)
+//   DELTA long gained (or Engine.UNCHANGED), long score, byte over, int count, then
+//         count times int cell (i * width + j) and byte exponent
+//   ERROR short length, UTF-8 message, then the server closes the connection
+// A client sends the next request when it likes, requests are answered in order.
+public final class GameServer implements Closeable {
+
+    public static final byte NEW = 'N';
+    public static final byte MOVE = 'M';
+    public static final byte STATE = 'S';
+    public static final byte DELTA = 'D';
+    public static final byte ERROR = 'E';
+
+    public static final int DEFAULT_PORT = 20480;
+
+    static final int NEW_BYTES = 1 + 2 * Integer.BYTES + Long.BYTES;
+    static final int MOVE_BYTES = 2;
+    static final int STATE_HEADER_BYTES = 1 + 2 * Integer.BYTES + Long.BYTES + Integer.BYTES + 1;
+    static final int DELTA_HEADER_BYTES = 1 + 2 * Long.BYTES + 1 + Integer.BYTES;
+    // Offsets of the over flag and the cell count in a DELTA
+    static final int DELTA_OVER_OFFSET = 1 + 2 * Long.BYTES;
+    static final int DELTA_COUNT_OFFSET = DELTA_OVER_OFFSET + 1;
+    static final int DELTA_CELL_BYTES = Integer.BYTES + 1;
+
+    // Larger boards are refused, a state message must stay reasonable
+    public static final int MAX_CELLS = 1 << 16;
+
+    // A connection is not read while this much output waits for it
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private int nextLoop;
+
+    public GameServer(int port, int threads) throws IOException {
+        Useful.require(threads > 0);
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+        server.configureBlocking(false);
+        loops = new Loop[threads];
+        for (int t = 0; t < threads; ++t) {
+            loops[t] = new Loop(Selector.open());
+        }
+        // The first loop accepts and deals the connections out round robin
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int t = 0; t < threads; ++t) {
+            Thread thread = new Thread(loops[t], "2048-server-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Loop loop : loops) {
+            loop.selector.close();
+        }
+    }
+
+    // [port] [threads]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        GameServer gameServer = new GameServer(port, threads);
+        System.out.println("Serving 2048 on " + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + gameServer.getPort() + " with " + threads + " threads");
+        Thread.currentThread().join();
+    }
+
+    // A connection that fails to set up is dropped, a failing accept, out of file
+    // descriptors for example, is retried on the next select
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (server.isOpen()) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                continue;
+            }
+            Loop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.incoming.add(channel);
+            loop.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // A failure closes the connection it came from, the loop serves the others
+        // until the server closes its selector
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    try {
+                        selector.select();
+                    } catch (IOException e) {
+                        System.err.println("Select failed: " + e.getMessage());
+                        continue;
+                    }
+                    for (SocketChannel channel; (channel = incoming.poll()) != null; ) {
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+                        } catch (ClosedChannelException e) {
+                            // The client hung up before it was served
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        dispatch(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (ClosedSelectorException e) {
+                // The server was closed
+            }
+        }
+
+        private void dispatch(SelectionKey key) {
+            if (key.channel() == server) {
+                if (key.isValid()) {
+                    accept();
+                }
+                return;
+            }
+            try {
+                if (key.isValid()) {
+                    ((Session) key.attachment()).serve(key);
+                }
+            } catch (ClosedSelectorException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                if (!(e instanceof CancelledKeyException)) {
+                    System.err.println("Connection dropped: " + e);
+                }
+                key.cancel();
+                closeQuietly(key.channel());
+            }
+        }
+    }
+
+    private static final class Session implements Observer {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(64);
+        // Kept in write mode, flipped only while it is sent
+        private ByteBuffer out = ByteBuffer.allocate(256);
+        private Game game;
+        private long gained;
+        private boolean starting;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void serve(SelectionKey key) {
+            try {
+                if (key.isReadable() && channel.read(in) < 0) {
+                    close(key);
+                    return;
+                }
+                if (handle()) {
+                    flush(key);
+                } else {
+                    // Sends the error if it can, then hangs up
+                    flush(key);
+                    close(key);
+                }
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        // Answers the complete requests in the input, false after an error
+        private boolean handle() {
+            in.flip();
+            try {
+                while (in.hasRemaining()) {
+                    byte type = in.get(in.position());
+                    if (type == NEW) {
+                        if (in.remaining() < NEW_BYTES) {
+                            break;
+                        }
+                        in.get();
+                        if (!start(in.getInt(), in.getInt(), in.getLong())) {
+                            return false;
+                        }
+                    } else if (type == MOVE) {
+                        if (in.remaining() < MOVE_BYTES) {
+                            break;
+                        }
+                        in.get();
+                        if (!move(in.get())) {
+                            return false;
+                        }
+                    } else {
+                        error("Unknown request " + type);
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                in.compact();
+            }
+        }
+
+        private boolean start(int width, int height, long seed) {
+            if (width <= 0 || height <= 0 || (long) width * height < 2 || (long) width * height > MAX_CELLS) {
+                error("Invalid board size " + width + "x" + height);
+                return false;
+            }
+            // Tens of thousands of sessions can not each keep an undo history
+            game = new Game(width, height, this, MoveExecutor.SEQUENTIAL, new GameRandom(seed), 0);
+            // The first notification reports the whole board, it goes out as STATE
+            starting = true;
+            game.notifyObserver();
+            starting = false;
+            return true;
+        }
+
+        private boolean move(byte direction) {
+            if (game == null || direction < 0 || direction >= Direction.count()) {
+                error(game == null ? "No game, send NEW first" : "Invalid direction " + direction);
+                return false;
+            }
+            gained = game.move(Direction.of(direction));
+            game.notifyObserver();
+            return true;
+        }
+
+        // Writes the delta of the move just played
+        @Override
+        public void update(ChangeSet changes) {
+            if (starting) {
+                writeState();
+                return;
+            }
+            int width = game.getWidth();
+            int count = changes.isEverything() ? width * game.getHeight() : changes.size();
+            ensure(DELTA_HEADER_BYTES + DELTA_CELL_BYTES * count);
+            out.put(DELTA)
+                    .putLong(gained)
+                    .putLong(game.getScore())
+                    .put((byte) (game.isOver() ? 1 : 0))
+                    .putInt(count);
+            for (int k = 0; k < count; ++k) {
+                int cell = changes.isEverything() ? k : changes.get(k);
+                out.putInt(cell).put((byte) game.getExponent(cell / width, cell % width));
+            }
+        }
+
+        private void writeState() {
+            int width = game.getWidth();
+            int height = game.getHeight();
+            ensure(STATE_HEADER_BYTES + width * height);
+            out.put(STATE)
+                    .putInt(width)
+                    .putInt(height)
+                    .putLong(game.getScore())
+                    .putInt(game.getMoveCount())
+                    .put((byte) (game.isOver() ? 1 : 0));
+            for (int i = 0; i < height; ++i) {
+                for (int j = 0; j < width; ++j) {
+                    out.put((byte) game.getExponent(i, j));
+                }
+            }
+        }
+
+        private void error(String message) {
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            ensure(1 + Short.BYTES + text.length);
+            out.put(ERROR).putShort((short) text.length).put(text);
+        }
+
+        // Sends what it can, the rest waits for the channel to become writable
+        private void flush(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            int waiting = out.remaining();
+            out.compact();
+            if (!key.isValid()) {
+                return;
+            }
+            int interest = waiting > MAX_PENDING_OUTPUT ? 0 : SelectionKey.OP_READ;
+            key.interestOps(pending ? interest | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void ensure(int bytes) {
+            if (out.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
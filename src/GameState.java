@@ -0,0 +1,176 @@
+// Immutable copy of a board with its score, taken by the thread that owns the game.
+// Any thread may read it. version counts the commands applied before it was taken.
+// A state taken after a few cells changed shares the rows it did not touch with the
+// state before it, so a move on a large board copies rows, not the board.
+public final class GameState {
+
+    private final int width;
+    private final int height;
+    // Tile exponents row by row, see Engine.getExponent. Rows are never written
+    // once the state is published, later states may share them.
+    private final byte[][] rows;
+    private final long score;
+    private final int moveCount;
+    private final boolean over;
+    // Neighbouring pairs of cells that allow each move, by Direction ordinal, so that
+    // the legal moves follow from the cells that changed
+    private final int[] pairs;
+    // Exponent of the engine's tiles that no longer merge
+    private final int maxExponent;
+    private final long version;
+
+    private GameState(int width, int height, byte[][] rows, long score, int moveCount, boolean over,
+                      int[] pairs, int maxExponent, long version) {
+        this.width = width;
+        this.height = height;
+        this.maxExponent = maxExponent;
+        this.rows = rows;
+        this.score = score;
+        this.moveCount = moveCount;
+        this.over = over;
+        this.pairs = pairs;
+        this.version = version;
+    }
+
+    public static GameState of(Engine game, long version) {
+        int width = game.getWidth();
+        int height = game.getHeight();
+        byte[][] rows = new byte[height][width];
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                rows[i][j] = (byte) game.getExponent(i, j);
+            }
+        }
+        int maxExponent = game.getMaxExponent();
+        int[] pairs = new int[Direction.count()];
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                if (j + 1 < width) {
+                    count(pairs, Game.pairMoves(rows[i][j], rows[i][j + 1], maxExponent,
+                            Direction.LEFT, Direction.RIGHT), 1);
+                }
+                if (i + 1 < height) {
+                    count(pairs, Game.pairMoves(rows[i][j], rows[i + 1][j], maxExponent,
+                            Direction.UP, Direction.DOWN), 1);
+                }
+            }
+        }
+        return new GameState(width, height, rows, game.getScore(), game.getMoveCount(), game.isOver(), pairs,
+                maxExponent, version);
+    }
+
+    // The state of the game after the given cells changed since this one was taken,
+    // null when none did. Copies the rows of the changed cells and recounts the pairs
+    // they are in, a board marked changed everywhere is taken whole.
+    public GameState next(Engine game, ChangeSet changes, long version) {
+        Useful.require(game.getWidth() == width && game.getHeight() == height, "Board size does not match the state");
+        if (changes != null && changes.isEverything()) {
+            return of(game, version);
+        }
+        byte[][] next = rows;
+        int[] nextPairs = pairs;
+        int changed = changes == null ? 0 : changes.size();
+        if (changed > 0) {
+            next = rows.clone();
+            nextPairs = pairs.clone();
+            for (int k = 0; k < changed; ++k) {
+                int cell = changes.get(k);
+                int i = cell / width;
+                int j = cell - i * width;
+                if (next[i] == rows[i]) {
+                    next[i] = rows[i].clone();
+                }
+                next[i][j] = (byte) game.getExponent(i, j);
+            }
+            // A pair of two changed cells is recounted from its first cell only
+            for (int k = 0; k < changed; ++k) {
+                int cell = changes.get(k);
+                int i = cell / width;
+                int j = cell - i * width;
+                if (j > 0 && !changes.contains(cell - 1)) {
+                    recount(nextPairs, next, i, j - 1, i, j, Direction.LEFT, Direction.RIGHT);
+                }
+                if (j + 1 < width) {
+                    recount(nextPairs, next, i, j, i, j + 1, Direction.LEFT, Direction.RIGHT);
+                }
+                if (i > 0 && !changes.contains(cell - width)) {
+                    recount(nextPairs, next, i - 1, j, i, j, Direction.UP, Direction.DOWN);
+                }
+                if (i + 1 < height) {
+                    recount(nextPairs, next, i, j, i + 1, j, Direction.UP, Direction.DOWN);
+                }
+            }
+        }
+        return new GameState(width, height, next, game.getScore(), game.getMoveCount(), game.isOver(),
+                nextPairs, maxExponent, version);
+    }
+
+    private void recount(int[] nextPairs, byte[][] next, int i, int j, int k, int l, Direction toward, Direction away) {
+        count(nextPairs, Game.pairMoves(rows[i][j], rows[k][l], maxExponent, toward, away), -1);
+        count(nextPairs, Game.pairMoves(next[i][j], next[k][l], maxExponent, toward, away), 1);
+    }
+
+    private static void count(int[] pairs, int moves, int delta) {
+        for (; moves != 0; moves &= moves - 1) {
+            pairs[Integer.numberOfTrailingZeros(moves)] += delta;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getExponent(int i, int j) {
+        Useful.require(0 <= i && i < height && 0 <= j && j < width);
+        return rows[i][j];
+    }
+
+    public int getNum(int i, int j) {
+        return Game.toInt(getExponent(i, j));
+    }
+
+    public long getScore() {
+        return score;
+    }
+
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    public boolean isOver() {
+        return over;
+    }
+
+    // Mask of Direction.mask() bits, see Engine.legalMoves
+    public int getLegalMoves() {
+        int mask = 0;
+        for (int d = 0; d < pairs.length; ++d) {
+            if (pairs[d] > 0) {
+                mask |= Direction.of(d).mask();
+            }
+        }
+        return mask;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getHighestExponent() {
+        int max = 0;
+        for (byte[] row : rows) {
+            for (byte e : row) {
+                max = Math.max(max, e);
+            }
+        }
+        return max;
+    }
+
+    public int getHighestTile() {
+        return Game.toInt(getHighestExponent());
+    }
+}
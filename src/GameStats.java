@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+// Statistics of finished games in sketches of fixed size: scores and move counts
+// in log-linear histograms as Histogram keeps them, the highest tile and the
+// merges per exponent, and the spawn positions in a count-min sketch so that
+// large boards take no more room than small ones. Merging the statistics of two
+// sets of games gives those of their union. Not thread-safe, every producer of
+// StatsPipeline fills its own.
+//
+// Merges are not watched move by move. Every tile is spawned or made by a merge
+// and is merged away or still on the final board, so with S(e) tiles of exponent e
+// spawned and F(e) left at the end, M(e) = (S(e) + M(e - 1) - F(e)) / 2 pairs of
+// them merged. A move only costs reading the cell of its spawn.
+public final class GameStats {
+
+    // Counters of the spawn sketch per row, spawn estimates are about exact up to
+    // this many cells
+    private static final int SPAWN_WIDTH = 4096;
+
+    private final int width;
+    private final int height;
+    private long games;
+    private long moves;
+    private final long[] scores = new long[Histogram.BUCKETS];
+    private long scoreTotal;
+    private long scoreMax;
+    private final long[] moveCounts = new long[Histogram.BUCKETS];
+    private long moveMax;
+    // Games by the exponent of their highest tile, merges by the exponent they made
+    private final long[] highest = new long[Game.MAX_EXPONENT + 1];
+    private final long[] merges = new long[Game.MAX_EXPONENT + 1];
+    private final long[] spawned = new long[Game.MAX_EXPONENT + 1];
+    private final CountMinSketch spawns = new CountMinSketch(SPAWN_WIDTH);
+
+    // Tiles spawned in the game being played, by exponent, and the final board
+    private final long[] gameSpawned = new long[Game.MAX_EXPONENT + 1];
+    private final long[] left = new long[Game.MAX_EXPONENT + 1];
+
+    public GameStats(int width, int height) {
+        Useful.require(width > 0 && height > 0);
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getGames() {
+        return games;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    // Counts the start tiles of a new game
+    public void start(Game game) {
+        Useful.require(game.getWidth() == width && game.getHeight() == height, "Boards differ in size");
+        Arrays.fill(gameSpawned, 0);
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                int e = game.getExponent(i, j);
+                if (e != 0) {
+                    ++gameSpawned[e];
+                    spawns.add(i * width + j, 1);
+                }
+            }
+        }
+    }
+
+    // After a move that changed the board
+    public void moved(Game game) {
+        int cell = game.getLastSpawn();
+        if (cell >= 0) {
+            ++gameSpawned[game.getExponent(cell / width, cell % width)];
+            spawns.add(cell, 1);
+        }
+    }
+
+    // Once the game is over, or abandoned
+    public void finish(Game game) {
+        Arrays.fill(left, 0);
+        int top = 0;
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                int e = game.getExponent(i, j);
+                ++left[e];
+                top = Math.max(top, e);
+            }
+        }
+        long made = 0;
+        for (int e = 1; e < Game.MAX_EXPONENT; ++e) {
+            made = (gameSpawned[e] + made - left[e]) / 2;
+            merges[e + 1] += made;
+            spawned[e] += gameSpawned[e];
+        }
+        ++highest[top];
+        ++games;
+        long score = game.getScore();
+        int played = game.getMoveCount();
+        moves += played;
+        scores[Histogram.bucket(Math.min(score, Histogram.MAX_VALUE))]++;
+        scoreTotal += score;
+        scoreMax = Math.max(scoreMax, score);
+        moveCounts[Histogram.bucket(played)]++;
+        moveMax = Math.max(moveMax, played);
+    }
+
+    public Histogram.Snapshot getScores() {
+        return new Histogram.Snapshot("score", scores.clone(), games, scoreTotal, scoreMax);
+    }
+
+    public Histogram.Snapshot getMoveCounts() {
+        return new Histogram.Snapshot("moves", moveCounts.clone(), games, moves, moveMax);
+    }
+
+    // Games whose highest tile has this exponent
+    public long getHighestCount(int exponent) {
+        return highest[exponent];
+    }
+
+    // Merges that made a tile of this exponent
+    public long getMerges(int exponent) {
+        return merges[exponent];
+    }
+
+    // Tiles of this exponent spawned, the start tiles included
+    public long getSpawned(int exponent) {
+        return spawned[exponent];
+    }
+
+    // Tiles spawned on cell i * width + j, an estimate that is never too low
+    public long getSpawns(int cell) {
+        return spawns.estimate(cell);
+    }
+
+    public long getSpawnTotal() {
+        return spawns.total();
+    }
+
+    // Adds the games of other, which is left as it is
+    public void merge(GameStats other) {
+        Useful.require(other.width == width && other.height == height, "Boards differ in size");
+        games += other.games;
+        moves += other.moves;
+        add(scores, other.scores);
+        scoreTotal += other.scoreTotal;
+        scoreMax = Math.max(scoreMax, other.scoreMax);
+        add(moveCounts, other.moveCounts);
+        moveMax = Math.max(moveMax, other.moveMax);
+        add(highest, other.highest);
+        add(merges, other.merges);
+        add(spawned, other.spawned);
+        spawns.merge(other.spawns);
+    }
+
+    public GameStats copy() {
+        GameStats copy = new GameStats(width, height);
+        copy.merge(this);
+        return copy;
+    }
+
+    public void clear() {
+        games = 0;
+        moves = 0;
+        Arrays.fill(scores, 0);
+        scoreTotal = 0;
+        scoreMax = 0;
+        Arrays.fill(moveCounts, 0);
+        moveMax = 0;
+        Arrays.fill(highest, 0);
+        Arrays.fill(merges, 0);
+        Arrays.fill(spawned, 0);
+        spawns.clear();
+    }
+
+    private static void add(long[] to, long[] from) {
+        for (int k = 0; k < to.length; ++k) {
+            to[k] += from[k];
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// Static evaluation of 4x4 bitboards used by the AI players.
+// A board scores the sum of its four rows and its four columns, each read from a
+// 65536 entry table that is filled once per weight set.
+public final class Heuristic {
+
+    public static final Heuristic DEFAULT = new Heuristic(270f, 700f, 47f, 11f);
+
+    // Keeps every evaluation positive, expectimax treats zero as a lost game
+    private static final float BASELINE = 200000f;
+    private static final float MONOTONICITY_POWER = 4f;
+    private static final float SUM_POWER = 3.5f;
+
+    private final float emptyWeight;
+    private final float mergeWeight;
+    private final float monotonicityWeight;
+    private final float sumWeight;
+    private final float[] rowTable;
+
+    // emptyWeight rewards free cells, mergeWeight equal neighbours, monotonicityWeight
+    // penalises rows that go up and down and sumWeight penalises large scattered tiles
+    public Heuristic(float emptyWeight, float mergeWeight, float monotonicityWeight, float sumWeight) {
+        this.emptyWeight = emptyWeight;
+        this.mergeWeight = mergeWeight;
+        this.monotonicityWeight = monotonicityWeight;
+        this.sumWeight = sumWeight;
+
+        rowTable = new float[1 << 16];
+        int[] line = new int[BitboardGame.SIZE];
+        for (int row = 0; row < rowTable.length; ++row) {
+            for (int j = 0; j < line.length; ++j) {
+                line[j] = (row >>> (4 * j)) & 0xF;
+            }
+            rowTable[row] = evaluateLine(line);
+        }
+    }
+
+    public float evaluate(long board) {
+        long transposed = BitboardGame.transpose(board);
+        return rowTable[(int) (board & 0xFFFF)]
+                + rowTable[(int) ((board >>> 16) & 0xFFFF)]
+                + rowTable[(int) ((board >>> 32) & 0xFFFF)]
+                + rowTable[(int) (board >>> 48)]
+                + rowTable[(int) (transposed & 0xFFFF)]
+                + rowTable[(int) ((transposed >>> 16) & 0xFFFF)]
+                + rowTable[(int) ((transposed >>> 32) & 0xFFFF)]
+                + rowTable[(int) (transposed >>> 48)];
+    }
+
+    public float getEmptyWeight() {
+        return emptyWeight;
+    }
+
+    public float getMergeWeight() {
+        return mergeWeight;
+    }
+
+    public float getMonotonicityWeight() {
+        return monotonicityWeight;
+    }
+
+    public float getSumWeight() {
+        return sumWeight;
+    }
+
+    private float evaluateLine(int[] line) {
+        float sum = 0;
+        int empty = 0;
+        int merges = 0;
+        int previous = 0;
+        int run = 0;
+        for (int exponent : line) {
+            sum += (float) Math.pow(exponent, SUM_POWER);
+            if (exponent == 0) {
+                ++empty;
+                continue;
+            }
+            if (exponent == previous) {
+                ++run;
+            } else {
+                if (run > 0) {
+                    merges += 1 + run;
+                }
+                run = 0;
+            }
+            previous = exponent;
+        }
+        if (run > 0) {
+            merges += 1 + run;
+        }
+
+        float increasing = 0;
+        float decreasing = 0;
+        for (int j = 1; j < line.length; ++j) {
+            float before = (float) Math.pow(line[j - 1], MONOTONICITY_POWER);
+            float after = (float) Math.pow(line[j], MONOTONICITY_POWER);
+            if (line[j - 1] > line[j]) {
+                increasing += before - after;
+            } else {
+                decreasing += after - before;
+            }
+        }
+
+        return BASELINE
+                + emptyWeight * empty
+                + mergeWeight * merges
+                - monotonicityWeight * Math.min(increasing, decreasing)
+                - sumWeight * sum;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of non-negative values, HdrHistogram style: every power of
+// two is split into 2^SUB_BITS equal buckets, so a recorded value is known to about
+// 3 percent. Recording is lock-free and threads are spread over stripes of counters,
+// so games on different threads do not contend on the same cache lines.
+public final class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Larger values are counted as this one, about 18 minutes in nanoseconds
+    private static final int MAX_BITS = 40;
+    static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    private static final int STRIPES = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long value) {
+        long v = Math.min(Math.max(value, 0), MAX_VALUE);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucket(v));
+        total.add(v);
+        max.accumulate(v);
+    }
+
+    // Values below SUB_COUNT have a bucket each, above that the highest bit picks
+    // the row and the next SUB_BITS bits the bucket in it
+    static int bucket(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    // Smallest value that falls into the bucket
+    static long lowest(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT - 1 + SUB_BITS;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+    }
+
+    // The values are read while others record, so a snapshot may be slightly inconsistent
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; ++stripe) {
+            for (int b = 0; b < BUCKETS; ++b) {
+                long c = counts.get(stripe * BUCKETS + b);
+                merged[b] += c;
+                count += c;
+            }
+        }
+        return new Snapshot(name, merged, count, total.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int k = 0; k < counts.length(); ++k) {
+            counts.set(k, 0);
+        }
+        total.reset();
+        max.reset();
+    }
+
+    public static final class Snapshot {
+        private final String name;
+        private final long[] buckets;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(String name, long[] buckets, long count, long total, long max) {
+            this.name = name;
+            this.buckets = buckets;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        // Value below which the fraction q of the recorded values lies, the middle of its bucket
+        public long percentile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; ++b) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    long low = lowest(b);
+                    long high = b + 1 < BUCKETS ? lowest(b + 1) - 1 : MAX_VALUE;
+                    return Math.min(max, low + (high - low) / 2);
+                }
+            }
+            return max;
+        }
+    }
+}
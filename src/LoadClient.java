@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+// Load generator for GameServer: opens many sessions from one selector thread,
+// each plays random moves with one request in flight and keeps its board up to
+// date from the deltas. A finished game is replaced by a new one. Reports the
+// latency of the moves, measured from sending MOVE to reading its DELTA.
+public final class LoadClient {
+
+    private final int width;
+    private final int height;
+    private final Histogram latency = new Histogram("move");
+    private final Random policy = new Random(2048);
+    private long moves;
+    private long games;
+
+    private LoadClient(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    // [sessions] [moves per session] [size|WxH] [port]
+    public static void main(String[] args) throws IOException {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int perSession = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        String size = args.length > 2 ? args[2] : "4";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : GameServer.DEFAULT_PORT;
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(x < 0 ? size : size.substring(0, x));
+        int height = Integer.parseInt(x < 0 ? size : size.substring(x + 1));
+        Useful.require(sessions > 0 && perSession > 0);
+
+        LoadClient client = new LoadClient(width, height);
+        long start = System.nanoTime();
+        client.run(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), sessions, perSession);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Histogram.Snapshot s = client.latency.snapshot();
+        System.out.printf(Locale.ROOT, "%d sessions, %d moves, %d games in %.2f s, %.0f moves/s%n",
+                sessions, client.moves, client.games, seconds, client.moves / seconds);
+        System.out.printf(Locale.ROOT, "move latency us: p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                s.percentile(0.5) / 1e3, s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.getMax() / 1e3);
+    }
+
+    private void run(InetSocketAddress address, int sessions, int perSession) throws IOException {
+        try (Selector selector = Selector.open()) {
+            for (int k = 0; k < sessions; ++k) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                Session session = new Session(channel, perSession);
+                channel.register(selector, SelectionKey.OP_READ, session);
+                session.startGame(k);
+            }
+            int open = sessions;
+            while (open > 0) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Session session = (Session) key.attachment();
+                    if (!session.read()) {
+                        key.cancel();
+                        session.channel.close();
+                        --open;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    private final class Session {
+        private final SocketChannel channel;
+        private final byte[] board = new byte[width * height];
+        private final ByteBuffer in;
+        private final ByteBuffer out = ByteBuffer.allocate(GameServer.NEW_BYTES);
+        private int movesLeft;
+        private long sent;
+
+        Session(SocketChannel channel, int movesLeft) {
+            this.channel = channel;
+            this.movesLeft = movesLeft;
+            int cells = width * height;
+            in = ByteBuffer.allocate(Math.max(GameServer.STATE_HEADER_BYTES + cells,
+                    GameServer.DELTA_HEADER_BYTES + GameServer.DELTA_CELL_BYTES * cells));
+        }
+
+        void startGame(long seed) throws IOException {
+            ++games;
+            out.clear();
+            out.put(GameServer.NEW).putInt(width).putInt(height).putLong(seed);
+            send();
+        }
+
+        void sendMove() throws IOException {
+            out.clear();
+            out.put(GameServer.MOVE).put((byte) policy.nextInt(Direction.count()));
+            sent = System.nanoTime();
+            send();
+        }
+
+        // Requests are tiny, the socket takes them whole
+        private void send() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+
+        // Handles a complete response if there is one, false when the session is done
+        boolean read() throws IOException {
+            if (channel.read(in) < 0) {
+                return false;
+            }
+            in.flip();
+            try {
+                if (in.remaining() < 1) {
+                    return true;
+                }
+                byte type = in.get(0);
+                if (type == GameServer.STATE) {
+                    if (in.remaining() < GameServer.STATE_HEADER_BYTES + board.length) {
+                        return true;
+                    }
+                    in.position(GameServer.STATE_HEADER_BYTES);
+                    in.get(board);
+                } else if (type == GameServer.DELTA) {
+                    if (in.remaining() < GameServer.DELTA_HEADER_BYTES) {
+                        return true;
+                    }
+                    int count = in.getInt(GameServer.DELTA_COUNT_OFFSET);
+                    if (in.remaining() < GameServer.DELTA_HEADER_BYTES + GameServer.DELTA_CELL_BYTES * count) {
+                        return true;
+                    }
+                    latency.record(System.nanoTime() - sent);
+                    ++moves;
+                    --movesLeft;
+                    boolean over = in.get(GameServer.DELTA_OVER_OFFSET) != 0;
+                    in.position(GameServer.DELTA_HEADER_BYTES);
+                    for (int k = 0; k < count; ++k) {
+                        board[in.getInt()] = in.get();
+                    }
+                    if (movesLeft == 0) {
+                        return false;
+                    }
+                    if (over) {
+                        startGame(policy.nextLong());
+                        return true;
+                    }
+                } else {
+                    System.err.println("Server error: " + describe());
+                    return false;
+                }
+                sendMove();
+                return true;
+            } finally {
+                in.compact();
+            }
+        }
+
+        private String describe() {
+            if (in.get(0) != GameServer.ERROR || in.remaining() < 1 + Short.BYTES) {
+                return "unexpected response " + in.get(0);
+            }
+            byte[] text = new byte[Math.min(in.getShort(1), in.remaining() - 1 - Short.BYTES)];
+            in.position(1 + Short.BYTES);
+            in.get(text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+
+// Map from long to long without boxing: keys and values in two parallel arrays,
+// probed linearly from the slot a key hashes to and doubled once three quarters
+// full. A HashMap<Long, Long> spends about 80 bytes on an entry, this map 21 to
+// 43. Key 0 marks a free slot, so its entry is kept beside the arrays.
+// Removing shifts the following entries back, no tombstones pile up.
+// Keys are typically canonical boards, see Symmetries and BoardHash.
+// Not thread-safe.
+public final class LongMap {
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private boolean hasZero;
+    private long zeroValue;
+
+    public LongMap() {
+        this(16);
+    }
+
+    // Room for expected entries before the first resize
+    public LongMap(int expected) {
+        Useful.require(expected >= 0 && expected <= 1 << 29);
+        int capacity = Integer.highestOneBit(Math.max(4, expected + expected / 3)) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZero : keys[find(key)] == key;
+    }
+
+    public long get(long key, long missing) {
+        if (key == 0) {
+            return hasZero ? zeroValue : missing;
+        }
+        int slot = find(key);
+        return keys[slot] == key ? values[slot] : missing;
+    }
+
+    // Returns the previous value, missing when there was none
+    public long put(long key, long value, long missing) {
+        if (key == 0) {
+            long previous = hasZero ? zeroValue : missing;
+            hasZero = true;
+            zeroValue = value;
+            return previous;
+        }
+        int slot = find(key);
+        if (keys[slot] == key) {
+            long previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 4L > keys.length * 3L) {
+            resize();
+        }
+        return missing;
+    }
+
+    // Adds the key unless it is there, true when it was added. Deduplicates
+    // with LongMap used as a set.
+    public boolean add(long key, long value) {
+        if (containsKey(key)) {
+            return false;
+        }
+        put(key, value, 0);
+        return true;
+    }
+
+    // Returns the removed value, missing when there was none
+    public long remove(long key, long missing) {
+        if (key == 0) {
+            long previous = hasZero ? zeroValue : missing;
+            hasZero = false;
+            return previous;
+        }
+        int slot = find(key);
+        if (keys[slot] != key) {
+            return missing;
+        }
+        long previous = values[slot];
+        // Moves back every following entry that may then be found sooner
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = bucket(keys[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        --size;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    public void forEach(Visitor visitor) {
+        if (hasZero) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; ++slot) {
+            if (keys[slot] != 0) {
+                visitor.visit(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    // Slot of the key, or of the free slot where it would go
+    private int find(long key) {
+        int slot = bucket(key, mask);
+        while (keys[slot] != key && keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int k = 0; k < oldKeys.length; ++k) {
+            if (oldKeys[k] != 0) {
+                int slot = find(oldKeys[k]);
+                keys[slot] = oldKeys[k];
+                values[slot] = oldValues[k];
+            }
+        }
+    }
+
+    // Fibonacci hashing, the high bits folded in so that keys that differ only
+    // there, like boards with tiles in the last row, still spread.
+    // Shared with the other open addressing tables keyed by boards.
+    static int bucket(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
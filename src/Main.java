@@ -1,5 +1,12 @@
 public final class Main {
+    // Main [width height] [--bitboard]
     public static void main(String[] args) {
-        new GameFrame();
+        if (args.length > 0 && args[args.length - 1].equals("--bitboard")) {
+            new GameFrame(BitboardGame::new);
+        } else if (args.length >= 2) {
+            new GameFrame(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        } else {
+            new GameFrame();
+        }
     }
 }
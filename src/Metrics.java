@@ -0,0 +1,134 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.ObjectName;
+
+// Latency histograms of the hot paths, read through JMX or dump. Metrics are off
+// unless the JVM runs with -Dgame2048.metrics=true. The flag is a static final, so
+// with metrics off the JIT folds every "if (Metrics.ENABLED)" away and the moves
+// pay nothing, not even the System.nanoTime calls.
+public final class Metrics implements MetricsMXBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("game2048.metrics");
+
+    // Engine.move per direction, spawn included
+    private static final Histogram[] MOVE = new Histogram[Direction.count()];
+    public static final Histogram SPAWN = new Histogram("spawn");
+    public static final Histogram IS_OVER = new Histogram("isOver");
+    // GameFrame: painting a frame, and how late the frame timer fired on the EDT
+    public static final Histogram RENDER = new Histogram("render");
+    public static final Histogram EDT_DELAY = new Histogram("edt.delay");
+
+    private static final LongAdder MOVES = new LongAdder();
+    private static volatile long since = System.nanoTime();
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    static {
+        for (int k = 0; k < MOVE.length; ++k) {
+            MOVE[k] = new Histogram("move." + Direction.of(k).name().toLowerCase(Locale.ROOT));
+        }
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("game2048:type=Metrics"));
+            } catch (Exception e) {
+                System.err.println("Metrics are not published over JMX: " + e.getMessage());
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    public static void recordMove(Direction d, long nanos) {
+        MOVE[d.ordinal()].record(nanos);
+        MOVES.increment();
+    }
+
+    private static Histogram[] all() {
+        Histogram[] all = new Histogram[MOVE.length + 4];
+        System.arraycopy(MOVE, 0, all, 0, MOVE.length);
+        all[MOVE.length] = SPAWN;
+        all[MOVE.length + 1] = IS_OVER;
+        all[MOVE.length + 2] = RENDER;
+        all[MOVE.length + 3] = EDT_DELAY;
+        return all;
+    }
+
+    @Override
+    public long getMoveCount() {
+        return MOVES.sum();
+    }
+
+    // Since the start or the last reset
+    @Override
+    public double getMovesPerSecond() {
+        double seconds = (System.nanoTime() - since) / 1e9;
+        return seconds <= 0 ? 0 : MOVES.sum() / seconds;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return collect(Histogram.Snapshot::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getMedianNanos() {
+        return collect(s -> s.percentile(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getP99Nanos() {
+        return collect(s -> s.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxNanos() {
+        return collect(Histogram.Snapshot::getMax);
+    }
+
+    private static Map<String, Long> collect(ToLongFunction<Histogram.Snapshot> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Histogram histogram : all()) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            values.put(snapshot.getName(), value.applyAsLong(snapshot));
+        }
+        return values;
+    }
+
+    // One line per histogram that recorded anything, latencies in microseconds
+    @Override
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "%s, %d moves, %.0f moves/s%n",
+                ENABLED ? "metrics on" : "metrics off", getMoveCount(), getMovesPerSecond()));
+        text.append(String.format(Locale.ROOT, "%-12s %10s %9s %9s %9s %9s %9s%n",
+                "us", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Histogram histogram : all()) {
+            Histogram.Snapshot s = histogram.snapshot();
+            if (s.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.ROOT, "%-12s %10d %9.2f %9.2f %9.2f %9.2f %9.2f%n", s.getName(), s.getCount(),
+                    s.getMean() / 1e3, s.percentile(0.5) / 1e3, s.percentile(0.99) / 1e3,
+                    s.percentile(0.999) / 1e3, s.getMax() / 1e3));
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : all()) {
+            histogram.reset();
+        }
+        MOVES.reset();
+        since = System.nanoTime();
+    }
+}
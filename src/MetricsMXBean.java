@@ -0,0 +1,22 @@
+import java.util.Map;
+
+// Management view of Metrics, registered as game2048:type=Metrics. Latencies are
+// in nanoseconds and keyed by histogram name.
+public interface MetricsMXBean {
+
+    long getMoveCount();
+
+    double getMovesPerSecond();
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getMedianNanos();
+
+    Map<String, Long> getP99Nanos();
+
+    Map<String, Long> getMaxNanos();
+
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,224 @@
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// Monte Carlo player for boards of any size: every legal move is scored by the mean
+// final score of random games played from it to the end. Rollouts are split into
+// tasks on a fork join pool, which balances them by work stealing. Every worker
+// thread keeps its own generator and its own board, overwritten with copyFrom
+// before each rollout, so the rollout loop allocates nothing.
+// The game handed to a search must not change until the search returns.
+public final class MonteCarlo {
+
+    // Rollouts per leaf task, leaves look at the clock between rollouts
+    private static final int LEAF = 8;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    // Rollouts per move of a timed search, the deadline ends it long before
+    private static final int MAX_ROLLOUTS = 1 << 24;
+
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+    private final LongAdder rollouts = new LongAdder();
+    private volatile double lastRate;
+
+    public MonteCarlo() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public MonteCarlo(ForkJoinPool pool) {
+        Useful.require(pool != null);
+        this.pool = pool;
+    }
+
+    // Rollouts played by all searches so far
+    public long getRolloutCount() {
+        return rollouts.sum();
+    }
+
+    // Throughput of the last search
+    public double getRolloutsPerSecond() {
+        return lastRate;
+    }
+
+    // Plays rolloutsPerMove random games after every legal move, returns null when no move is legal
+    public Direction bestMove(Game game, int rolloutsPerMove) {
+        Useful.require(rolloutsPerMove > 0);
+        return search(game, rolloutsPerMove, NO_DEADLINE);
+    }
+
+    // Plays rollouts until millis have passed, at least one per move
+    public Direction bestMoveWithin(Game game, long millis) {
+        return search(game, MAX_ROLLOUTS, System.nanoTime() + millis * 1_000_000L);
+    }
+
+    private Direction search(Game root, int perMove, long deadline) {
+        int legal = root.legalMoves();
+        if (legal == 0) {
+            return null;
+        }
+        int[] moves = new int[Integer.bitCount(legal)];
+        for (int k = 0, m = 0; k < Direction.count(); ++k) {
+            if (Direction.of(k).isIn(legal)) {
+                moves[m++] = k;
+            }
+        }
+        LongAdder[] sums = new LongAdder[moves.length];
+        LongAdder[] counts = new LongAdder[moves.length];
+        for (int m = 0; m < moves.length; ++m) {
+            sums[m] = new LongAdder();
+            counts[m] = new LongAdder();
+        }
+
+        long start = System.nanoTime();
+        Rollouts first = new Rollouts(root, moves, sums, counts, 0, moves.length, NO_DEADLINE);
+        Rollouts rest = new Rollouts(root, moves, sums, counts, moves.length, (long) perMove * moves.length, deadline);
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(first, rest);
+            }
+        });
+        long played = 0;
+        int best = 0;
+        double bestMean = -1;
+        for (int m = 0; m < moves.length; ++m) {
+            long count = counts[m].sum();
+            played += count;
+            double mean = (double) sums[m].sum() / count;
+            if (mean > bestMean) {
+                bestMean = mean;
+                best = m;
+            }
+        }
+        rollouts.add(played);
+        lastRate = played / Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        return Direction.of(moves[best]);
+    }
+
+    // Rollout r starts with move moves[r % moves.length]
+    private final class Rollouts extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Game root;
+        private final int[] moves;
+        private final LongAdder[] sums;
+        private final LongAdder[] counts;
+        private final long from;
+        private final long to;
+        private final long deadline;
+
+        Rollouts(Game root, int[] moves, LongAdder[] sums, LongAdder[] counts, long from, long to, long deadline) {
+            this.root = root;
+            this.moves = moves;
+            this.sums = sums;
+            this.counts = counts;
+            this.from = from;
+            this.to = to;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void compute() {
+            if (expired()) {
+                return;
+            }
+            if (to - from > LEAF) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new Rollouts(root, moves, sums, counts, from, middle, deadline),
+                        new Rollouts(root, moves, sums, counts, middle, to, deadline));
+                return;
+            }
+            Worker worker = workers.get();
+            Game board = worker.boardFor(root);
+            for (long r = from; r < to && !expired(); ++r) {
+                int m = (int) (r % moves.length);
+                sums[m].add(worker.rollout(board, root, Direction.of(moves[m])));
+                counts[m].increment();
+            }
+        }
+
+        private boolean expired() {
+            return deadline != NO_DEADLINE && System.nanoTime() > deadline;
+        }
+    }
+
+    // Generator and board of one pool thread
+    private static final class Worker {
+        private final GameRandom rand = new GameRandom();
+        private Game board;
+
+        Game boardFor(Game root) {
+            if (board == null || board.getWidth() != root.getWidth() || board.getHeight() != root.getHeight()) {
+                board = root.copy();
+                board.setMoveExecutor(MoveExecutor.SEQUENTIAL);
+            }
+            return board;
+        }
+
+        // Plays the move, then random moves until the game is over. Returns the
+        // score gained, which ranks the moves.
+        long rollout(Game board, Game root, Direction first) {
+            board.copyFrom(root);
+            board.reseed(rand.nextLong());
+            board.move(first);
+            while (!board.isOver()) {
+                // Some move is legal, try the directions from a random one on
+                int k = rand.nextInt(Direction.count());
+                while (board.move(Direction.of(k)) == Engine.UNCHANGED) {
+                    k = (k + 1) % Direction.count();
+                }
+            }
+            return board.getScore() - root.getScore();
+        }
+    }
+
+    // CPU soak test: plays games with a Monte Carlo player for the given time.
+    // [seconds] [size|WxH] [millis per move] [--target rollouts/s]
+    // exits with status 1 when the throughput stays below the target.
+    public static void main(String[] args) {
+        double target = 0;
+        int positional = args.length;
+        for (int k = 0; k < args.length; ++k) {
+            if (args[k].equals("--target")) {
+                Useful.require(k + 1 < args.length, "--target needs a number of rollouts per second");
+                target = Double.parseDouble(args[k + 1]);
+                positional = Math.min(positional, k);
+            }
+        }
+        int seconds = positional > 0 ? Integer.parseInt(args[0]) : 30;
+        String size = positional > 1 ? args[1] : "4";
+        long millis = positional > 2 ? Long.parseLong(args[2]) : 20;
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(x < 0 ? size : size.substring(0, x));
+        int height = Integer.parseInt(x < 0 ? size : size.substring(x + 1));
+
+        MonteCarlo player = new MonteCarlo();
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        int games = 0;
+        long moves = 0;
+        long totalScore = 0;
+        long bestTile = 0;
+        while (System.nanoTime() < end) {
+            Game game = new Game(width, height, 2048L + games);
+            for (Direction d; System.nanoTime() < end && (d = player.bestMoveWithin(game, millis)) != null; ) {
+                game.move(d);
+                ++moves;
+            }
+            ++games;
+            totalScore += game.getScore();
+            bestTile = Math.max(bestTile, Game.valueOf(game.getHighestExponent()));
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double rate = player.getRolloutCount() / elapsed;
+        System.out.printf(Locale.ROOT, "%d games of %dx%d, %d moves in %.1f s on %d threads%n",
+                games, width, height, moves, elapsed, ForkJoinPool.getCommonPoolParallelism());
+        System.out.printf(Locale.ROOT, "%.0f rollouts/s, mean score %.1f, best tile %d%n",
+                rate, (double) totalScore / games, bestTile);
+        if (rate < target) {
+            System.out.printf(Locale.ROOT, "Below the target of %.0f rollouts/s%n", target);
+            System.exit(1);
+        }
+    }
+}
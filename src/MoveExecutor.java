@@ -0,0 +1,140 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+// Strategies for running the independent per row / per column work of a move.
+// execute returns only when every line has been processed.
+public enum MoveExecutor {
+
+    // Every line in the caller's thread. The executor allocates nothing itself,
+    // whatever the line tasks allocate is still paid for.
+    SEQUENTIAL {
+        @Override
+        public void execute(int count, IntConsumer task) {
+            for (int i = 0; i < count; ++i) {
+                task.accept(i);
+            }
+        }
+    },
+
+    // Ranges of lines on the shared common pool, worth it only for very large boards
+    FORK_JOIN {
+        @Override
+        public void execute(int count, IntConsumer task) {
+            if (count <= 1 || PARALLELISM == 1) {
+                SEQUENTIAL.execute(count, task);
+                return;
+            }
+            int grain = Math.max(1, count / (PARALLELISM * CHUNKS_PER_CORE));
+            ForkJoinPool.commonPool().invoke(new LineRange(task, 0, count, grain));
+        }
+    },
+
+    // One virtual thread per chunk of lines, falls back to a cached pool before Java 21
+    VIRTUAL {
+        @Override
+        public void execute(int count, IntConsumer task) {
+            if (count <= 1) {
+                SEQUENTIAL.execute(count, task);
+                return;
+            }
+            int chunks = Math.min(count, PARALLELISM * CHUNKS_PER_CORE);
+            Future<?>[] futures = new Future<?>[chunks];
+            for (int c = 0; c < chunks; ++c) {
+                int from = (int) ((long) count * c / chunks);
+                int to = (int) ((long) count * (c + 1) / chunks);
+                futures[c] = VirtualThreads.EXECUTOR.submit(() -> {
+                    for (int i = from; i < to; ++i) {
+                        task.accept(i);
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                join(future);
+            }
+        }
+    };
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int CHUNKS_PER_CORE = 4;
+
+    public abstract void execute(int count, IntConsumer task);
+
+    private static void join(Future<?> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class LineRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer task;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        private LineRange(IntConsumer task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; ++i) {
+                    task.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LineRange(task, from, mid, grain), new LineRange(task, mid, to, grain));
+        }
+    }
+
+    // Lazily created so that sequential users never start a thread
+    private static final class VirtualThreads {
+        private static final ExecutorService EXECUTOR = create();
+
+        private static ExecutorService create() {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "move-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Compact record of a game: board dimensions, the seed that dealt its tiles and
+// two bits per move. Only moves that changed the board are recorded, the others
+// neither move tiles nor draw from the generator. Replaying the moves on a
+// game built from the same seed reproduces it exactly.
+//
+// Binary form: int width, int height, long seed, int move count, then the moves
+// four to a byte, first move in the lowest two bits.
+public final class MoveLog {
+
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final int width;
+    private final int height;
+    private final long seed;
+    private byte[] moves;
+    private int length;
+
+    public MoveLog(int width, int height, long seed) {
+        this(width, height, seed, new byte[16], 0);
+    }
+
+    private MoveLog(int width, int height, long seed, byte[] moves, int length) {
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.moves = moves;
+        this.length = length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public Direction get(int k) {
+        Useful.require(0 <= k && k < length);
+        return Direction.of((moves[k >>> 2] >>> ((k & 3) << 1)) & 3);
+    }
+
+    public void record(Direction d) {
+        int index = length >>> 2;
+        if (index == moves.length) {
+            moves = Arrays.copyOf(moves, moves.length * 2);
+        }
+        moves[index] |= (byte) (d.ordinal() << ((length & 3) << 1));
+        ++length;
+    }
+
+    // Plays the log on a fresh headless game, failing if the game diverges
+    public Game replay() {
+        Game game = new Game(width, height, seed);
+        for (int k = 0; k < length; ++k) {
+            Direction d = get(k);
+            Useful.require(game.move(d) != Engine.UNCHANGED, "Replay diverged at move " + k + " (" + d + ")");
+        }
+        return game;
+    }
+
+    public int encodedLength() {
+        return HEADER_BYTES + (length + 3) / 4;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putLong(seed);
+        buffer.putInt(length);
+        buffer.put(moves, 0, (length + 3) / 4);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public static MoveLog readFrom(ByteBuffer buffer) {
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        long seed = buffer.getLong();
+        int length = buffer.getInt();
+        Useful.require(width > 0 && height > 0 && length >= 0, "Corrupt move log");
+        byte[] moves = new byte[Math.max(16, (length + 3) / 4)];
+        buffer.get(moves, 0, (length + 3) / 4);
+        return new MoveLog(width, height, seed, moves, length);
+    }
+
+    public static MoveLog fromBytes(byte[] bytes) {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+}
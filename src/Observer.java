@@ -1,3 +1,4 @@
 public interface Observer {
-    void update();
+    // The set is owned by the subject and cleared once update returns
+    void update(ChangeSet changes);
 }
@@ -0,0 +1,331 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only file of finished boards of one size, memory mapped. Every record has
+// the same size, so record k is found by arithmetic and its fields are read straight
+// from the mapping, nothing is deserialized:
+//   long score, int move count, byte highest exponent, one byte exponent per cell
+// padded to 8 bytes. The header holds the dimensions and the number of records, it is
+// updated after the record is written so a process dying mid-append never exposes
+// half a record. force writes the records back before the count, but the system may
+// write mapped pages back in any order before that, a system crash still can.
+// Two in-memory indexes, rebuilt from the mapping when the file is opened, find
+// records by score and by highest tile. Not thread-safe, readers included: confine a
+// store to one thread.
+public final class RecordStore implements Closeable {
+
+    private static final int MAGIC = 0x32303438; // "2048"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int COUNT_OFFSET = 20;
+
+    private static final int SCORE_OFFSET = 0;
+    private static final int MOVES_OFFSET = 8;
+    private static final int HIGHEST_OFFSET = 12;
+    private static final int CELLS_OFFSET = 13;
+
+    // Records are mapped in segments that double from about the first size to
+    // the largest, mapping grows the file, so a store of a few games stays small
+    private static final long FIRST_SEGMENT_BYTES = 4 * 1024;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    // Exponents fit a byte, so there are at most this many distinct highest tiles
+    private static final int EXPONENTS = 64;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // First record of every mapped segment
+    private int[] segmentStarts = new int[8];
+    private final int width;
+    private final int height;
+    private final int recordBytes;
+    private final int firstRecords;
+    private final int recordsPerSegment;
+    private int count;
+
+    // Keys score << 32 | record, sorted up to sortedCount, later appends are sorted on demand
+    private long[] byScore;
+    private int sortedCount;
+    // Records by highest exponent
+    private final int[][] byHighest = new int[EXPONENTS][];
+    private final int[] highestCounts = new int[EXPONENTS];
+    private long highScore;
+
+    private RecordStore(FileChannel channel, int width, int height) throws IOException {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.recordBytes = (CELLS_OFFSET + width * height + 7) & ~7;
+        this.firstRecords = (int) Math.max(1, FIRST_SEGMENT_BYTES / recordBytes);
+        this.recordsPerSegment = (int) Math.max(1, SEGMENT_BYTES / recordBytes);
+
+        boolean fresh = channel.size() < HEADER_BYTES;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (fresh) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, width);
+            header.putInt(12, height);
+            header.putInt(16, recordBytes);
+            header.putInt(COUNT_OFFSET, 0);
+        } else {
+            Useful.require(header.getInt(0) == MAGIC && header.getInt(4) == VERSION, "Not a record file");
+            Useful.require(header.getInt(8) == width && header.getInt(12) == height,
+                    "Record file holds " + header.getInt(8) + "x" + header.getInt(12) + " boards");
+            Useful.require(header.getInt(16) == recordBytes, "Corrupt record file");
+        }
+        count = header.getInt(COUNT_OFFSET);
+        Useful.require(count >= 0, "Corrupt record file");
+
+        byScore = new long[Math.max(16, count)];
+        for (int id = 0; id < count; ++id) {
+            index(id);
+        }
+    }
+
+    // Opens the store, creating the file when needed
+    public static RecordStore open(Path file, int width, int height) throws IOException {
+        Useful.require(width > 0 && height > 0);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new RecordStore(channel, width, height);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // ~/.2048/records-WxH.bin
+    public static Path defaultPath(int width, int height) {
+        return Paths.get(System.getProperty("user.home"), ".2048", "records-" + width + "x" + height + ".bin");
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Highest score of all records, 0 when there are none
+    public long getHighScore() {
+        return highScore;
+    }
+
+    // Appends the board, score and move count of a game, returns the record number
+    public int append(Engine game) {
+        Useful.require(game.getWidth() == width && game.getHeight() == height, "Board size does not match the store");
+        int id = count;
+        ByteBuffer segment = segment(id);
+        int base = offset(id);
+        int highest = 0;
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                int exponent = game.getExponent(i, j);
+                segment.put(base + CELLS_OFFSET + i * width + j, (byte) exponent);
+                highest = Math.max(highest, exponent);
+            }
+        }
+        segment.putLong(base + SCORE_OFFSET, game.getScore());
+        segment.putInt(base + MOVES_OFFSET, game.getMoveCount());
+        segment.put(base + HIGHEST_OFFSET, (byte) highest);
+
+        count = id + 1;
+        header.putInt(COUNT_OFFSET, count);
+        index(id);
+        return id;
+    }
+
+    public long getScore(int id) {
+        check(id);
+        return segment(id).getLong(offset(id) + SCORE_OFFSET);
+    }
+
+    public int getMoveCount(int id) {
+        check(id);
+        return segment(id).getInt(offset(id) + MOVES_OFFSET);
+    }
+
+    public int getHighestExponent(int id) {
+        check(id);
+        return segment(id).get(offset(id) + HIGHEST_OFFSET);
+    }
+
+    public int getHighestTile(int id) {
+        return Game.toInt(getHighestExponent(id));
+    }
+
+    public int getExponent(int id, int i, int j) {
+        check(id);
+        Useful.require(0 <= i && i < height && 0 <= j && j < width);
+        return segment(id).get(offset(id) + CELLS_OFFSET + i * width + j);
+    }
+
+    public int getNum(int id, int i, int j) {
+        return Game.toInt(getExponent(id, i, j));
+    }
+
+    // Records with the best scores, best first
+    public int[] top(int n) {
+        sortScores();
+        int length = Math.min(n, count);
+        int[] ids = new int[length];
+        for (int k = 0; k < length; ++k) {
+            ids[k] = (int) byScore[count - 1 - k];
+        }
+        return ids;
+    }
+
+    // Records with a score in [min, max], lowest first
+    public int[] withScoreBetween(long min, long max) {
+        sortScores();
+        int from = lowerBound(scoreKey(min, 0));
+        int to = lowerBound(scoreKey(max, Integer.MAX_VALUE) + 1);
+        int[] ids = new int[Math.max(0, to - from)];
+        for (int k = from; k < to; ++k) {
+            ids[k - from] = (int) byScore[k];
+        }
+        return ids;
+    }
+
+    // Records whose highest tile has the given exponent, in the order they were
+    // appended. Exponents as getHighestExponent returns them, 0 for an empty board.
+    public int[] withHighestExponent(int exponent) {
+        checkExponent(exponent);
+        int[] ids = byHighest[exponent];
+        return ids == null ? new int[0] : Arrays.copyOf(ids, highestCounts[exponent]);
+    }
+
+    public int countWithHighestExponent(int exponent) {
+        checkExponent(exponent);
+        return highestCounts[exponent];
+    }
+
+    // Writes the mapped pages back to the file
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void index(int id) {
+        ByteBuffer segment = segment(id);
+        int base = offset(id);
+        long score = segment.getLong(base + SCORE_OFFSET);
+        int highest = segment.get(base + HIGHEST_OFFSET);
+
+        if (id == byScore.length) {
+            byScore = Arrays.copyOf(byScore, id * 2);
+        }
+        byScore[id] = scoreKey(score, id);
+        highScore = Math.max(highScore, score);
+
+        int[] ids = byHighest[highest];
+        if (ids == null) {
+            ids = new int[16];
+        } else if (highestCounts[highest] == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[highestCounts[highest]++] = id;
+        byHighest[highest] = ids;
+    }
+
+    // Scores above Integer.MAX_VALUE share the top key, the record keeps the exact score
+    private static long scoreKey(long score, int id) {
+        return Math.min(Math.max(score, 0), Integer.MAX_VALUE) << 32 | id;
+    }
+
+    private void sortScores() {
+        if (sortedCount < count) {
+            Arrays.sort(byScore, 0, count);
+            sortedCount = count;
+        }
+    }
+
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (byScore[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void check(int id) {
+        Useful.require(0 <= id && id < count, "No record " + id);
+    }
+
+    private static void checkExponent(int exponent) {
+        Useful.require(0 <= exponent && exponent < EXPONENTS, "Invalid exponent " + exponent);
+    }
+
+    // The segment holding a record, mapping new segments as the file grows. Records
+    // lie one after the other whatever the segments, files of older layouts open.
+    private ByteBuffer segment(int id) {
+        return segments.get(segmentIndex(id));
+    }
+
+    private int offset(int id) {
+        return (id - segmentStarts[segmentIndex(id)]) * recordBytes;
+    }
+
+    private int segmentIndex(int id) {
+        try {
+            while (segments.isEmpty() || id >= end(segments.size() - 1)) {
+                int index = segments.size();
+                int start = index == 0 ? 0 : end(index - 1);
+                int records = index == 0 ? firstRecords
+                        : (int) Math.min(recordsPerSegment, 2L * (end(index - 1) - segmentStarts[index - 1]));
+                if (index == segmentStarts.length) {
+                    segmentStarts = Arrays.copyOf(segmentStarts, index * 2);
+                }
+                segmentStarts[index] = start;
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + (long) start * recordBytes, (long) records * recordBytes));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map the record file", e);
+        }
+        int index = Arrays.binarySearch(segmentStarts, 0, segments.size(), id);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // One past the last record of a mapped segment
+    private int end(int index) {
+        return segmentStarts[index] + segments.get(index).capacity() / recordBytes;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Plays random games without any UI on every core and reports the throughput.
+//   java -cp out/production/2048 SelfPlay [games] [size|WxH] [seed] [--bitboard]
+// Game number g is dealt from seed + g and its moves are picked with a policy
+// seeded from it as well, so a run is reproducible game by game.
+public final class SelfPlay {
+
+    private SelfPlay() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String dimensions = args.length > 1 ? args[1] : "4";
+        int separator = dimensions.indexOf('x');
+        int width = Integer.parseInt(separator < 0 ? dimensions : dimensions.substring(0, separator));
+        int height = separator < 0 ? width : Integer.parseInt(dimensions.substring(separator + 1));
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+        boolean bitboard = args.length > 3 && args[3].equals("--bitboard");
+        Useful.require(!bitboard || width == BitboardGame.SIZE && height == BitboardGame.SIZE, "The bitboard engine is 4x4 only");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        AtomicInteger next = new AtomicInteger();
+        LongAdder moves = new LongAdder();
+        LongAdder totalScore = new LongAdder();
+        LongAccumulator bestTile = new LongAccumulator(Math::max, 0);
+
+        Thread[] workers = new Thread[cores];
+        long start = System.nanoTime();
+        for (int t = 0; t < cores; ++t) {
+            workers[t] = new Thread(() -> {
+                Random policy = new Random();
+                for (int g = next.getAndIncrement(); g < games; g = next.getAndIncrement()) {
+                    policy.setSeed(GameRandom.mix64(seed + g));
+                    Engine game = bitboard ? new BitboardGame(seed + g) : new Game(width, height, seed + g);
+                    moves.add(playRandomly(game, policy));
+                    totalScore.add(game.getScore());
+                    bestTile.accumulate(Game.valueOf(game.getHighestExponent()));
+                }
+            }, "self-play-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d games of %dx%d on %d threads in %.2f s%n", games, width, height, cores, seconds);
+        System.out.printf("%.1f games/s, %.0f moves/s%n", games / seconds, moves.sum() / seconds);
+        System.out.printf("mean score %.1f, best tile %d%n", (double) totalScore.sum() / games, bestTile.get());
+        if (Metrics.ENABLED) {
+            System.out.print(Metrics.get().dump());
+        }
+    }
+
+    // Picks uniformly among the legal moves until none is left, returns the number of moves
+    public static int playRandomly(Engine game, Random policy) {
+        int played = 0;
+        for (int legal = game.legalMoves(); legal != 0; legal = game.legalMoves()) {
+            int pick = policy.nextInt(Integer.bitCount(legal));
+            for (int k = 0; k < pick; ++k) {
+                legal &= legal - 1;
+            }
+            game.move(Direction.of(Integer.numberOfTrailingZeros(legal)));
+            ++played;
+        }
+        return played;
+    }
+}
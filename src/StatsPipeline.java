@@ -0,0 +1,268 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Streams statistics out of games as they are played on any number of threads.
+// Every producer thread fills a GameStats of its own, so recording shares nothing,
+// and hands it over every BATCH games through a bounded queue. One aggregator
+// thread merges the batches into the total, returns them cleared for reuse and
+// prints a snapshot every period. Memory does not grow with the games played:
+// the sketches have a fixed size, the queues are bounded and a producer that runs
+// ahead of the aggregator waits.
+//   java -cp out/production/2048 StatsPipeline [games] [size|WxH] [seed] [seconds per snapshot]
+public final class StatsPipeline implements AutoCloseable {
+
+    private static final int BATCH = 64;
+    private static final int QUEUE = 32;
+    // How often a waiting hand over checks that the aggregator still runs
+    private static final long WAIT_MILLIS = 100;
+
+    private final int width;
+    private final int height;
+    private final BlockingQueue<GameStats> full = new ArrayBlockingQueue<>(QUEUE);
+    private final BlockingQueue<GameStats> spare = new ArrayBlockingQueue<>(QUEUE);
+    // Stops the aggregator once the batches before it are merged
+    private final GameStats end;
+    private final GameStats total;
+    private final Thread aggregator;
+    private final long periodNanos;
+    private final PrintStream out;
+    private final long start = System.nanoTime();
+    private boolean closed;
+
+    // Prints to out every periodMillis, out may be null
+    public StatsPipeline(int width, int height, long periodMillis, PrintStream out) {
+        Useful.require(periodMillis > 0);
+        this.width = width;
+        this.height = height;
+        this.end = new GameStats(width, height);
+        this.total = new GameStats(width, height);
+        this.periodNanos = periodMillis * 1_000_000L;
+        this.out = out;
+        aggregator = new Thread(this::run, "2048-stats");
+        aggregator.setDaemon(true);
+        aggregator.start();
+    }
+
+    // A recorder for one thread
+    public Producer producer() {
+        return new Producer();
+    }
+
+    // The games merged so far
+    public synchronized GameStats snapshot() {
+        return total.copy();
+    }
+
+    // Waits until the batches handed over are merged, then prints the last snapshot.
+    // Producers flush before. An interrupt stops the wait and stays set.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            while (aggregator.isAlive() && !full.offer(end, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                // The aggregator is behind
+            }
+            aggregator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long next = System.nanoTime() + periodNanos;
+        while (true) {
+            GameStats batch;
+            try {
+                batch = full.poll(Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == end) {
+                print();
+                return;
+            }
+            if (batch != null) {
+                synchronized (this) {
+                    total.merge(batch);
+                }
+                batch.clear();
+                spare.offer(batch);
+            }
+            if (System.nanoTime() >= next) {
+                print();
+                next = System.nanoTime() + periodNanos;
+            }
+        }
+    }
+
+    private void print() {
+        if (out != null) {
+            out.print(format(snapshot(), (System.nanoTime() - start) / 1e9));
+        }
+    }
+
+    public static String format(GameStats stats, double seconds) {
+        StringBuilder text = new StringBuilder();
+        long games = stats.getGames();
+        text.append(String.format(Locale.ROOT, "%.1f s: %d games of %dx%d, %d moves, %.1f games/s%n",
+                seconds, games, stats.getWidth(), stats.getHeight(), stats.getMoves(), games / Math.max(seconds, 1e-9)));
+        if (games == 0) {
+            return text.toString();
+        }
+        for (Histogram.Snapshot s : new Histogram.Snapshot[] {stats.getScores(), stats.getMoveCounts()}) {
+            text.append(String.format(Locale.ROOT, "%-6s mean %.1f  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d%n",
+                    s.getName(), s.getMean(), s.percentile(0.5), s.percentile(0.9), s.percentile(0.99),
+                    s.percentile(0.999), s.getMax()));
+        }
+        text.append("highest tile ");
+        for (int e = 0; e <= Game.MAX_EXPONENT; ++e) {
+            if (stats.getHighestCount(e) > 0) {
+                text.append(String.format(Locale.ROOT, " %s %.2f%%", label(e), 100.0 * stats.getHighestCount(e) / games));
+            }
+        }
+        text.append(System.lineSeparator()).append("merges/game  ");
+        for (int e = 2; e <= Game.MAX_EXPONENT; ++e) {
+            if (stats.getMerges(e) > 0) {
+                text.append(String.format(Locale.ROOT, " %s %.2f", label(e), (double) stats.getMerges(e) / games));
+            }
+        }
+        text.append(System.lineSeparator());
+        text.append(String.format(Locale.ROOT, "spawns       %s %.2f%%  %s %.2f%%%n",
+                label(1), 100.0 * stats.getSpawned(1) / stats.getSpawnTotal(),
+                label(2), 100.0 * stats.getSpawned(2) / stats.getSpawnTotal()));
+        // The share of the spawns per cell, for boards that fit a terminal
+        if (stats.getWidth() <= 16 && stats.getHeight() <= 16) {
+            for (int i = 0; i < stats.getHeight(); ++i) {
+                text.append("  ");
+                for (int j = 0; j < stats.getWidth(); ++j) {
+                    double share = 100.0 * stats.getSpawns(i * stats.getWidth() + j) / stats.getSpawnTotal();
+                    text.append(String.format(Locale.ROOT, " %6.2f%%", share));
+                }
+                text.append(System.lineSeparator());
+            }
+        }
+        return text.toString();
+    }
+
+    private static String label(int exponent) {
+        return exponent <= Game.MAX_INT_EXPONENT ? Long.toString(Game.valueOf(exponent)) : "2^" + exponent;
+    }
+
+    // Records the games of one thread, which must not share it
+    public final class Producer implements AutoCloseable {
+        private GameStats batch = take();
+        private int games;
+
+        public void start(Game game) {
+            batch.start(game);
+        }
+
+        public void moved(Game game) {
+            batch.moved(game);
+        }
+
+        public void finish(Game game) {
+            batch.finish(game);
+            if (++games == BATCH) {
+                flush();
+            }
+        }
+
+        // Hands the games recorded so far to the aggregator, waits while it is behind.
+        // Throws IllegalStateException once the aggregator has stopped, nobody
+        // would take the batch.
+        public void flush() {
+            if (games == 0) {
+                return;
+            }
+            boolean interrupted = false;
+            boolean handed = false;
+            while (!handed) {
+                if (!aggregator.isAlive()) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("The statistics aggregator has stopped");
+                }
+                try {
+                    handed = full.offer(batch, WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            batch = take();
+            games = 0;
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+
+        private GameStats take() {
+            GameStats reused = spare.poll();
+            return reused != null ? reused : new GameStats(width, height);
+        }
+    }
+
+    // Plays random games on every core and streams their statistics
+    public static void main(String[] args) throws InterruptedException {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 100_000;
+        String dimensions = args.length > 1 ? args[1] : "4";
+        int separator = dimensions.indexOf('x');
+        int width = Integer.parseInt(separator < 0 ? dimensions : dimensions.substring(0, separator));
+        int height = separator < 0 ? width : Integer.parseInt(dimensions.substring(separator + 1));
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+        long period = args.length > 3 ? (long) (Double.parseDouble(args[3]) * 1000) : 5000;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        AtomicLong next = new AtomicLong();
+        Thread[] workers = new Thread[cores];
+        try (StatsPipeline pipeline = new StatsPipeline(width, height, period, System.out)) {
+            for (int t = 0; t < cores; ++t) {
+                workers[t] = new Thread(() -> {
+                    Random policy = new Random();
+                    try (Producer producer = pipeline.producer()) {
+                        for (long g = next.getAndIncrement(); g < games; g = next.getAndIncrement()) {
+                            // Dealt and played from the seed, the same run gives the same games
+                            policy.setSeed(GameRandom.mix64(seed + g));
+                            Game game = new Game(width, height, seed + g);
+                            producer.start(game);
+                            playRandomly(game, policy, producer);
+                            producer.finish(game);
+                        }
+                    }
+                }, "stats-" + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    // SelfPlay.playRandomly, telling the producer about every move
+    private static void playRandomly(Game game, Random policy, Producer producer) {
+        for (int legal = game.legalMoves(); legal != 0; legal = game.legalMoves()) {
+            int pick = policy.nextInt(Integer.bitCount(legal));
+            for (int k = 0; k < pick; ++k) {
+                legal &= legal - 1;
+            }
+            game.move(Direction.of(Integer.numberOfTrailingZeros(legal)));
+            producer.moved(game);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// Rotations and reflections of a board that keep its shape, 8 on a square board
+// and 4 on the others. Transform t transposes when t >= 4, then mirrors the rows
+// when bit 0 is set and the columns when bit 1 is set. Boards equal up to a
+// transform play the same and are worth the same, so caches and tables key them
+// by their canonical form, the smallest transformed board as an unsigned long.
+// Moving a board and transforming it gives the same board as transforming it
+// and making the transformed move.
+//
+// An instance transforms boards packed like BitboardGame, one 4 bit exponent per
+// cell, cell (i, j) at bit 4 * (i * width + j). 4x4 bitboards have a faster path
+// of shifts and masks in the static methods. BoardHash keys Game boards of any size.
+public final class Symmetries {
+
+    private final int width;
+    private final int cells;
+    // shifts[t][c] is the bit position cell c moves to under transform t
+    private final int[][] shifts;
+
+    public Symmetries(int width, int height) {
+        Useful.require(Tablebase.isPackable(width, height), "Boards of up to 4x4 can be packed");
+        this.width = width;
+        this.cells = width * height;
+        shifts = new int[count(width, height)][cells];
+        for (int t = 0; t < shifts.length; ++t) {
+            for (int c = 0; c < cells; ++c) {
+                shifts[t][c] = 4 * map(t, c / width, c % width, width, height);
+            }
+        }
+    }
+
+    public static int count(int width, int height) {
+        return width == height ? 8 : 4;
+    }
+
+    // Cell i * width + j that cell (i, j) moves to under transform t
+    public static int map(int t, int i, int j, int width, int height) {
+        boolean swap = t >= 4;
+        int row = swap ? j : i;
+        int column = swap ? i : j;
+        row = (t & 1) != 0 ? height - 1 - row : row;
+        column = (t & 2) != 0 ? width - 1 - column : column;
+        return row * width + column;
+    }
+
+    // The move on the transformed board
+    public static Direction map(int t, Direction d) {
+        int rowStep = d == Direction.UP ? -1 : d == Direction.DOWN ? 1 : 0;
+        int columnStep = d == Direction.LEFT ? -1 : d == Direction.RIGHT ? 1 : 0;
+        int row = t >= 4 ? columnStep : rowStep;
+        int column = t >= 4 ? rowStep : columnStep;
+        row = (t & 1) != 0 ? -row : row;
+        column = (t & 2) != 0 ? -column : column;
+        return row < 0 ? Direction.UP : row > 0 ? Direction.DOWN : column < 0 ? Direction.LEFT : Direction.RIGHT;
+    }
+
+    // The move on a board for a move on its transform
+    public static Direction unmap(int t, Direction d) {
+        for (Direction candidate : Direction.values()) {
+            if (map(t, candidate) == d) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    public int size() {
+        return shifts.length;
+    }
+
+    public long transform(long board, int t) {
+        if (cells == 16) {
+            return transform4x4(board, t);
+        }
+        int[] to = shifts[t];
+        long result = 0;
+        for (int c = 0; c < cells; ++c) {
+            result |= (board >>> (4 * c) & 0xF) << to[c];
+        }
+        return result;
+    }
+
+    public long canonical(long board) {
+        return cells == 16 ? canonical4x4(board) : transform(board, canonicalTransform(board));
+    }
+
+    // The transform that gives the canonical board
+    public int canonicalTransform(long board) {
+        int best = 0;
+        long smallest = board;
+        for (int t = 1; t < shifts.length; ++t) {
+            long transformed = transform(board, t);
+            if (Long.compareUnsigned(transformed, smallest) < 0) {
+                smallest = transformed;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    public static long transform4x4(long board, int t) {
+        long b = t >= 4 ? BitboardGame.transpose(board) : board;
+        b = (t & 1) != 0 ? flipRows(b) : b;
+        return (t & 2) != 0 ? flipColumns(b) : b;
+    }
+
+    // Smallest of the 8 transforms of a 4x4 bitboard, a dozen shifts and masks each
+    public static long canonical4x4(long board) {
+        long columns = flipColumns(board);
+        long transposed = BitboardGame.transpose(board);
+        long transposedColumns = flipColumns(transposed);
+        long min = min(board, flipRows(board));
+        min = min(min, min(columns, flipRows(columns)));
+        min = min(min, min(transposed, flipRows(transposed)));
+        return min(min, min(transposedColumns, flipRows(transposedColumns)));
+    }
+
+    // Reverses the order of the rows, 16 bits each
+    private static long flipRows(long b) {
+        return b >>> 48 | (b >>> 16) & 0xFFFF0000L | (b << 16) & 0xFFFF00000000L | b << 48;
+    }
+
+    // Reverses the cells inside every row
+    private static long flipColumns(long b) {
+        return (b & 0x000F000F000F000FL) << 12 | (b & 0x00F000F000F000F0L) << 4
+                | (b >>> 4) & 0x00F000F000F000F0L | (b >>> 12) & 0x000F000F000F000FL;
+    }
+
+    private static long min(long a, long b) {
+        return Long.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Precomputed positions of boards up to 4x4, memory mapped and read in place.
+// Boards are packed like BitboardGame, one 4 bit exponent per cell, cell (i, j) at
+// bit 4 * (i * width + j). An exact table holds every position reachable in a game
+// with the expected score still to gain from it under best play, the score already
+// made not included. A book holds the positions of the first moves of a game with
+// the move and value an expectimax search found.
+// Rotated and reflected boards have the same value, so a table keeps only the
+// smallest of them and turns the move back for the board asked about.
+// The file is an open addressing hash table of 16 byte slots after the header:
+//   long board, float value, int move ordinal (-1 when no move is legal)
+// probed linearly from the slot the board hashes to. The empty board never occurs
+// in a game, it marks a free slot. Written by TablebaseGenerator.
+public final class Tablebase implements Closeable {
+
+    public static final int EXACT = 1;
+    public static final int BOOK = 2;
+
+    private static final int MAGIC = 0x54423438; // "TB48"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16;
+
+    // Slots are mapped in segments of 1 GB
+    private static final int SEGMENT_BITS = 26;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Symmetries symmetries;
+    private final int width;
+    private final int height;
+    private final int kind;
+    private final int depth;
+    private final int count;
+    private final int mask;
+
+    private Tablebase(FileChannel channel) throws IOException {
+        this.channel = channel;
+        Useful.require(channel.size() >= HEADER_BYTES, "Not a tablebase");
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        Useful.require(header.getInt(0) == MAGIC && header.getInt(4) == VERSION, "Not a tablebase");
+        width = header.getInt(8);
+        height = header.getInt(12);
+        kind = header.getInt(16);
+        depth = header.getInt(20);
+        count = header.getInt(24);
+        int capacity = header.getInt(28);
+        Useful.require(isPackable(width, height) && (kind == EXACT || kind == BOOK), "Corrupt tablebase");
+        Useful.require(capacity > 0 && Integer.bitCount(capacity) == 1 && capacity <= MAX_CAPACITY
+                && count >= 0 && count < capacity, "Corrupt tablebase");
+        Useful.require(channel.size() >= HEADER_BYTES + (long) capacity * SLOT_BYTES, "Truncated tablebase");
+        mask = capacity - 1;
+        segments = map(channel, FileChannel.MapMode.READ_ONLY, capacity);
+        symmetries = new Symmetries(width, height);
+    }
+
+    public static Tablebase open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new Tablebase(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // ~/.2048/tablebase-WxH.bin
+    public static Path defaultPath(int width, int height) {
+        return Paths.get(System.getProperty("user.home"), ".2048", "tablebase-" + width + "x" + height + ".bin");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // EXACT or BOOK
+    public int getKind() {
+        return kind;
+    }
+
+    // Search depth of a book, 0 for an exact table
+    public int getDepth() {
+        return depth;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public boolean contains(long board) {
+        return find(symmetries.canonical(board)) >= 0;
+    }
+
+    // Expected score still to gain under best play for an exact table, add the game's
+    // score for its expected final score. The search value of a book, NaN for an unknown board.
+    public float getValue(long board) {
+        int slot = find(symmetries.canonical(board));
+        return slot < 0 ? Float.NaN : segment(slot).getFloat(offset(slot) + Long.BYTES);
+    }
+
+    // Best move, null for an unknown board and when no move is legal
+    public Direction getMove(long board) {
+        int t = symmetries.canonicalTransform(board);
+        int slot = find(symmetries.transform(board, t));
+        if (slot < 0) {
+            return null;
+        }
+        int move = segment(slot).getInt(offset(slot) + Long.BYTES + Float.BYTES);
+        return move < 0 ? null : Symmetries.unmap(t, Direction.of(move));
+    }
+
+    public Direction getMove(Engine game) {
+        return game.getWidth() == width && game.getHeight() == height && fits(game) ? getMove(pack(game)) : null;
+    }
+
+    // Slot of the board, -1 when it is not in the table
+    private int find(long board) {
+        if (board == 0) {
+            return -1;
+        }
+        for (int slot = LongMap.bucket(board, mask); ; slot = (slot + 1) & mask) {
+            long key = segment(slot).getLong(offset(slot));
+            if (key == board) {
+                return slot;
+            }
+            if (key == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_BITS];
+    }
+
+    private static int offset(int slot) {
+        return (slot & SEGMENT_MASK) * SLOT_BYTES;
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, int capacity) throws IOException {
+        int perSegment = Math.min(capacity, 1 << SEGMENT_BITS);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[capacity / perSegment];
+        for (int k = 0; k < mapped.length; ++k) {
+            mapped[k] = channel.map(mode, HEADER_BYTES + (long) k * perSegment * SLOT_BYTES, (long) perSegment * SLOT_BYTES);
+        }
+        return mapped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Writes a table of distinct canonical boards, see Symmetries, moves are ordinals or -1
+    static void write(Path file, int width, int height, int kind, int depth,
+                      long[] boards, float[] values, byte[] moves, int count) throws IOException {
+        Useful.require(isPackable(width, height) && (kind == EXACT || kind == BOOK));
+        // At most three quarters full, a miss ends after a few slots
+        long capacity = Long.highestOneBit(Math.max(1, (long) count * 4 / 3)) << 1;
+        Useful.require(capacity <= MAX_CAPACITY, "Too many positions for one table: " + count);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            MappedByteBuffer[] out = map(channel, FileChannel.MapMode.READ_WRITE, (int) capacity);
+            int slotMask = (int) capacity - 1;
+            for (int k = 0; k < count; ++k) {
+                long board = boards[k];
+                Useful.require(board != 0);
+                int slot = LongMap.bucket(board, slotMask);
+                while (out[slot >>> SEGMENT_BITS].getLong(offset(slot)) != 0) {
+                    slot = (slot + 1) & slotMask;
+                }
+                out[slot >>> SEGMENT_BITS].putLong(offset(slot), board)
+                        .putFloat(offset(slot) + Long.BYTES, values[k])
+                        .putInt(offset(slot) + Long.BYTES + Float.BYTES, moves[k]);
+            }
+            for (MappedByteBuffer segment : out) {
+                segment.force();
+            }
+            // The header goes last, a table cut short never opens
+            header.putInt(8, width).putInt(12, height).putInt(16, kind).putInt(20, depth)
+                    .putInt(24, count).putInt(28, (int) capacity);
+            header.putInt(4, VERSION).putInt(0, MAGIC);
+            header.force();
+        }
+    }
+
+    // Boards a long holds, lines of up to 4 cells
+    public static boolean isPackable(int width, int height) {
+        return 2 <= width && width <= BitboardGame.SIZE && 2 <= height && height <= BitboardGame.SIZE;
+    }
+
+    private static boolean fits(Engine game) {
+        return game.getHighestExponent() <= BitboardGame.MAX_EXPONENT;
+    }
+
+    public static long pack(Engine game) {
+        int width = game.getWidth();
+        Useful.require(isPackable(width, game.getHeight()) && fits(game), "Board can not be packed");
+        long board = 0;
+        for (int i = 0; i < game.getHeight(); ++i) {
+            for (int j = 0; j < width; ++j) {
+                board |= (long) game.getExponent(i, j) << (4 * (i * width + j));
+            }
+        }
+        return board;
+    }
+
+    // The board after a move, the same board when the move changes nothing.
+    // Tiles merge as in Game, nibbles of MAX_EXPONENT do not merge.
+    static long move(long board, int width, int height, Direction d) {
+        boolean rows = d == Direction.LEFT || d == Direction.RIGHT;
+        boolean reversed = d == Direction.RIGHT || d == Direction.DOWN;
+        int lines = rows ? height : width;
+        int length = rows ? width : height;
+        long result = 0;
+        for (int line = 0; line < lines; ++line) {
+            int end = 0;
+            int last = 0;
+            for (int k = 0; k < length; ++k) {
+                int e = (int) (board >>> shift(line, k, rows, reversed, length, width)) & 0xF;
+                if (e == 0) {
+                    continue;
+                }
+                if (e == last && e < BitboardGame.MAX_EXPONENT) {
+                    result += 1L << shift(line, end - 1, rows, reversed, length, width);
+                    last = 0;
+                } else {
+                    result |= (long) e << shift(line, end, rows, reversed, length, width);
+                    last = e;
+                    ++end;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int shift(int line, int k, boolean rows, boolean reversed, int length, int width) {
+        int position = reversed ? length - 1 - k : k;
+        return 4 * (rows ? line * width + position : position * width + line);
+    }
+
+    // Sum of (e - 1) * 2^e over the tiles. Merging two 2^e tiles raises it by
+    // 2^(e + 1), exactly the score of the merge, so the score of a move is the
+    // difference of the potentials and a move needs no second return value.
+    static long potential(long board) {
+        long sum = 0;
+        for (long b = board; b != 0; b >>>= 4) {
+            int e = (int) (b & 0xF);
+            if (e > 1) {
+                sum += (long) (e - 1) << e;
+            }
+        }
+        return sum;
+    }
+
+    static long tileSum(long board) {
+        long sum = 0;
+        for (long b = board; b != 0; b >>>= 4) {
+            sum += Game.valueOf((int) (b & 0xF));
+        }
+        return sum;
+    }
+}
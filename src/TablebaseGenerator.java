@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+// Builds a tablebase, see Tablebase, on every core of one machine.
+//
+// Exact tables enumerate forward from every start position. A move keeps the sum
+// of the tiles and a spawn adds BASE or NEXT_BASE to it, so the positions fall into
+// layers by tile sum and every successor lies one or two layers up. The layers are
+// generated in increasing order, then valued in decreasing order, each from the two
+// above it, which is a retrograde pass that needs no fixpoint. Inside a layer the
+// positions are independent and split into chunks on the common fork join pool.
+// Only canonical boards are kept, see Symmetries, which cuts a square
+// board to about an eighth.
+//
+// A book takes the start positions of a 4x4 game and everything reachable from them
+// within a few moves, and keeps the move and value of an expectimax search.
+public final class TablebaseGenerator {
+
+    // Exact tables are built for boards of up to this many cells, a 3x3 board
+    // already has millions of positions
+    public static final int MAX_EXACT_CELLS = 9;
+
+    private static final int CHUNK = 4096;
+
+    private final int width;
+    private final int height;
+    private final int cells;
+    private final Symmetries symmetries;
+
+    private TablebaseGenerator(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cells = width * height;
+        this.symmetries = new Symmetries(width, height);
+    }
+
+    // WxH [file] [book moves] [book depth]
+    public static void main(String[] args) throws IOException {
+        String size = args.length > 0 ? args[0] : "3";
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(x < 0 ? size : size.substring(0, x));
+        int height = Integer.parseInt(x < 0 ? size : size.substring(x + 1));
+        Path file = args.length > 1 ? Paths.get(args[1]) : Tablebase.defaultPath(width, height);
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        Useful.require(Tablebase.isPackable(width, height), "Tablebases hold boards from 2x2 to 4x4");
+
+        TablebaseGenerator generator = new TablebaseGenerator(width, height);
+        long start = System.nanoTime();
+        if (width * height <= MAX_EXACT_CELLS) {
+            generator.exact(file);
+        } else {
+            Useful.require(width == BitboardGame.SIZE && height == BitboardGame.SIZE, "Books are built for 4x4 boards");
+            Useful.require(moves >= 0 && 1 <= depth && depth <= Expectimax.MAX_DEPTH);
+            generator.book(file, moves, depth);
+        }
+        System.out.printf(Locale.ROOT, "%s written in %.1f s%n", file, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void exact(Path file) throws IOException {
+        // Layer s holds the positions whose tiles add up to s * BASE
+        List<List<long[]>> pending = new ArrayList<>();
+        List<long[]> layers = new ArrayList<>();
+        long[] starts = startPositions();
+        for (long board : starts) {
+            add(pending, layerOf(board), new long[] {symmetries.canonical(board)});
+        }
+
+        long total = 0;
+        for (int s = 0; s < pending.size(); ++s) {
+            long[] layer = merge(pending.get(s));
+            pending.set(s, null);
+            layers.add(layer);
+            total += layer.length;
+            int chunks = (layer.length + CHUNK - 1) / CHUNK;
+            long[][][] found = IntStream.range(0, chunks).parallel()
+                    .mapToObj(chunk -> successors(layer, chunk * CHUNK, Math.min(layer.length, (chunk + 1) * CHUNK)))
+                    .toArray(long[][][]::new);
+            for (long[][] next : found) {
+                add(pending, s + 1, next[0]);
+                add(pending, s + 2, next[1]);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%dx%d: %d positions in %d layers%n", width, height, total, layers.size());
+        Useful.require(total <= Tablebase.MAX_CAPACITY / 4 * 3, "Too many positions for one table: " + total);
+
+        // The two layers above the last one are empty
+        int count = layers.size();
+        layers.add(new long[0]);
+        layers.add(new long[0]);
+        double[][] values = new double[count + 2][];
+        values[count] = new double[0];
+        values[count + 1] = new double[0];
+        byte[][] moves = new byte[count][];
+        for (int s = count - 1; s >= 0; --s) {
+            long[] layer = layers.get(s);
+            long[] up = layers.get(s + 1);
+            long[] upTwo = layers.get(s + 2);
+            double[] upValues = values[s + 1];
+            double[] upTwoValues = values[s + 2];
+            double[] layerValues = new double[layer.length];
+            byte[] layerMoves = new byte[layer.length];
+            IntStream.range(0, layer.length).parallel().forEach(k ->
+                    value(layer[k], up, upValues, upTwo, upTwoValues, layerValues, layerMoves, k));
+            values[s] = layerValues;
+            moves[s] = layerMoves;
+        }
+
+        long[] boards = new long[(int) total];
+        float[] stored = new float[(int) total];
+        byte[] storedMoves = new byte[(int) total];
+        int n = 0;
+        for (int s = 0; s < count; ++s) {
+            long[] layer = layers.get(s);
+            for (int k = 0; k < layer.length; ++k, ++n) {
+                boards[n] = layer[k];
+                stored[n] = (float) values[s][k];
+                storedMoves[n] = moves[s][k];
+            }
+        }
+        Tablebase.write(file, width, height, Tablebase.EXACT, 0, boards, stored, storedMoves, n);
+
+        // Every start position is equally likely
+        double sum = 0;
+        for (long board : starts) {
+            int s = layerOf(board);
+            sum += values[s][Arrays.binarySearch(layers.get(s), symmetries.canonical(board))];
+        }
+        System.out.printf(Locale.ROOT, "expected score of a new game %.3f%n", sum / starts.length);
+    }
+
+    // Every board Game can start with: two tiles of BASE or NEXT_BASE
+    private long[] startPositions() {
+        long[] boards = new long[cells * (cells - 1) * 2];
+        int n = 0;
+        for (int a = 0; a < cells; ++a) {
+            for (int b = a + 1; b < cells; ++b) {
+                for (long ea = 1; ea <= 2; ++ea) {
+                    for (long eb = 1; eb <= 2; ++eb) {
+                        boards[n++] = ea << (4 * a) | eb << (4 * b);
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(boards, n);
+    }
+
+    private static int layerOf(long board) {
+        return (int) (Tablebase.tileSum(board) / Game.BASE);
+    }
+
+    private static void add(List<List<long[]>> pending, int layer, long[] boards) {
+        while (pending.size() <= layer) {
+            pending.add(new ArrayList<>());
+        }
+        pending.get(layer).add(boards);
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        int length = 0;
+        for (long[] part : parts) {
+            length += part.length;
+        }
+        long[] all = new long[length];
+        int n = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, all, n, part.length);
+            n += part.length;
+        }
+        return unique(all, n);
+    }
+
+    private static long[] unique(long[] boards, int length) {
+        Arrays.parallelSort(boards, 0, length);
+        int n = 0;
+        for (int k = 0; k < length; ++k) {
+            if (n == 0 || boards[k] != boards[n - 1]) {
+                boards[n++] = boards[k];
+            }
+        }
+        return Arrays.copyOf(boards, n);
+    }
+
+    // Positions after every legal move and spawn, those with a BASE spawn first
+    private long[][] successors(long[] layer, int from, int to) {
+        long[] base = new long[16];
+        long[] nextBase = new long[16];
+        int n = 0;
+        for (int k = from; k < to; ++k) {
+            long board = layer[k];
+            for (Direction d : Direction.values()) {
+                long next = Tablebase.move(board, width, height, d);
+                if (next == board) {
+                    continue;
+                }
+                for (int cell = 0; cell < cells; ++cell) {
+                    if (((next >>> (4 * cell)) & 0xF) == 0) {
+                        if (n == base.length) {
+                            base = Arrays.copyOf(base, n * 2);
+                            nextBase = Arrays.copyOf(nextBase, n * 2);
+                        }
+                        base[n] = symmetries.canonical(next | 1L << (4 * cell));
+                        nextBase[n] = symmetries.canonical(next | 2L << (4 * cell));
+                        ++n;
+                    }
+                }
+            }
+        }
+        return new long[][] {unique(base, n), unique(nextBase, n)};
+    }
+
+    // Best move of a position, the spawn after it is BASE or NEXT_BASE with even
+    // odds on any empty cell, as in Game
+    private void value(long board, long[] up, double[] upValues, long[] upTwo, double[] upTwoValues,
+                       double[] values, byte[] moves, int k) {
+        double best = 0;
+        int bestMove = -1;
+        long potential = Tablebase.potential(board);
+        for (Direction d : Direction.values()) {
+            long next = Tablebase.move(board, width, height, d);
+            if (next == board) {
+                continue;
+            }
+            double sum = 0;
+            int empty = 0;
+            for (int cell = 0; cell < cells; ++cell) {
+                if (((next >>> (4 * cell)) & 0xF) == 0) {
+                    sum += upValues[Arrays.binarySearch(up, symmetries.canonical(next | 1L << (4 * cell)))];
+                    sum += upTwoValues[Arrays.binarySearch(upTwo, symmetries.canonical(next | 2L << (4 * cell)))];
+                    ++empty;
+                }
+            }
+            double value = Tablebase.potential(next) - potential + sum / (2 * empty);
+            if (bestMove < 0 || value > best) {
+                best = value;
+                bestMove = d.ordinal();
+            }
+        }
+        values[k] = best;
+        moves[k] = (byte) bestMove;
+    }
+
+    private void book(Path file, int plies, int depth) throws IOException {
+        long[] positions = startPositions();
+        for (int k = 0; k < positions.length; ++k) {
+            positions[k] = symmetries.canonical(positions[k]);
+        }
+        positions = unique(positions, positions.length);
+        long[] frontier = positions;
+        for (int ply = 0; ply < plies; ++ply) {
+            long[] next = merge(Arrays.asList(successors(frontier, 0, frontier.length)));
+            long[] all = Arrays.copyOf(positions, positions.length + next.length);
+            System.arraycopy(next, 0, all, positions.length, next.length);
+            positions = unique(all, all.length);
+            frontier = next;
+        }
+        System.out.printf(Locale.ROOT, "4x4 book: %d positions, %d moves deep, searched %d plies%n",
+                positions.length, plies, depth);
+
+        Expectimax solver = new Expectimax();
+        float[] values = new float[positions.length];
+        byte[] moves = new byte[positions.length];
+        for (int k = 0; k < positions.length; ++k) {
+            float[] moveValues = solver.evaluateMoves(positions[k], depth);
+            int best = -1;
+            for (int m = 0; m < moveValues.length; ++m) {
+                if (moveValues[m] >= 0 && (best < 0 || moveValues[m] > moveValues[best])) {
+                    best = m;
+                }
+            }
+            values[k] = best < 0 ? 0 : moveValues[best];
+            moves[k] = (byte) best;
+        }
+        Tablebase.write(file, width, height, Tablebase.BOOK, depth, positions, values, moves, positions.length);
+    }
+}
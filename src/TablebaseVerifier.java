@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Checks a tablebase against live search.
+//
+// An exact table is checked two ways. Sampled games are played to the end and
+// every position met must be in the table, must agree with one ply of search
+// over the table, its value the best over the moves of the score of the move and
+// the mean value of the spawns after it, and its move must reach that value.
+// Then positions 1, 2, 4, ... moves before the end of those games are solved
+// again by a memoised search that never reads the table, within a node budget.
+// A book is checked by searching sampled entries again at the depth it was built
+// with, by one solver as the generator used, and comparing the values.
+//
+// [file] [samples], exits with status 1 on any mismatch.
+public final class TablebaseVerifier {
+
+    // Relative error of a float value against the double it was computed from
+    private static final double TOLERANCE = 1e-4;
+    // Positions the independent search may visit for one sample
+    private static final int NODE_BUDGET = 200_000;
+
+    private final Tablebase table;
+    private final int width;
+    private final int height;
+    private final int cells;
+    private final Symmetries symmetries;
+    private int mismatches;
+
+    private TablebaseVerifier(Tablebase table) {
+        this.table = table;
+        this.width = table.getWidth();
+        this.height = table.getHeight();
+        this.cells = width * height;
+        this.symmetries = new Symmetries(width, height);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = args.length > 0 ? Paths.get(args[0]) : Tablebase.defaultPath(3, 3);
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long start = System.nanoTime();
+        int mismatches;
+        try (Tablebase table = Tablebase.open(file)) {
+            System.out.printf(Locale.ROOT, "%s: %dx%d %s, %d positions in %d slots%n", file, table.getWidth(),
+                    table.getHeight(), table.getKind() == Tablebase.EXACT ? "exact" : "book of depth " + table.getDepth(),
+                    table.size(), table.capacity());
+            TablebaseVerifier verifier = new TablebaseVerifier(table);
+            if (table.getKind() == Tablebase.EXACT) {
+                verifier.verifyExact(samples);
+            } else {
+                verifier.verifyBook(samples);
+            }
+            mismatches = verifier.mismatches;
+        }
+        System.out.printf(Locale.ROOT, "%d mismatches in %.1f s%n", mismatches, (System.nanoTime() - start) / 1e9);
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void verifyExact(int samples) {
+        GameRandom rand = new GameRandom(48);
+        long checked = 0;
+        int solved = 0;
+        for (int sample = 0; sample < samples; ++sample) {
+            List<Long> played = new ArrayList<>();
+            long board = spawn(spawn(0, rand), rand);
+            while (true) {
+                ++checked;
+                if (!consistent(board)) {
+                    break;
+                }
+                Direction d = table.getMove(board);
+                if (d == null) {
+                    break;
+                }
+                played.add(board);
+                board = spawn(Tablebase.move(board, width, height, d), rand);
+            }
+            for (int back = 1; back <= played.size(); back *= 2) {
+                long late = played.get(played.size() - back);
+                LongMap memo = new LongMap();
+                double value = solve(late, memo);
+                if (memo.size() > NODE_BUDGET) {
+                    break;
+                }
+                ++solved;
+                if (!close(table.getValue(late), value)) {
+                    mismatch(late, "solved to " + value + ", the table has " + table.getValue(late));
+                }
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d positions of %d games checked, %d solved again%n", checked, samples, solved);
+    }
+
+    // One ply of expectimax over the values of the table
+    private boolean consistent(long board) {
+        if (!table.contains(board)) {
+            mismatch(board, "missing");
+            return false;
+        }
+        double best = 0;
+        Direction bestMove = null;
+        double[] values = new double[Direction.count()];
+        for (Direction d : Direction.values()) {
+            long next = Tablebase.move(board, width, height, d);
+            if (next == board) {
+                values[d.ordinal()] = -1;
+                continue;
+            }
+            double sum = 0;
+            int empty = 0;
+            for (int cell = 0; cell < cells; ++cell) {
+                if ((next >>> (4 * cell) & 0xF) == 0) {
+                    sum += table.getValue(next | 1L << (4 * cell)) + table.getValue(next | 2L << (4 * cell));
+                    ++empty;
+                }
+            }
+            double value = Tablebase.potential(next) - Tablebase.potential(board) + sum / (2 * empty);
+            values[d.ordinal()] = value;
+            if (bestMove == null || value > best) {
+                best = value;
+                bestMove = d;
+            }
+        }
+        Direction stored = table.getMove(board);
+        if (!close(table.getValue(board), best)) {
+            mismatch(board, "value " + table.getValue(board) + ", one ply gives " + best);
+            return false;
+        }
+        if ((stored == null) != (bestMove == null) || stored != null && !close(values[stored.ordinal()], best)) {
+            mismatch(board, "move " + stored + ", one ply gives " + bestMove);
+            return false;
+        }
+        return true;
+    }
+
+    // Expected score still to gain under best play, by plain recursion
+    private double solve(long board, LongMap memo) {
+        long key = symmetries.canonical(board);
+        if (memo.containsKey(key)) {
+            return Double.longBitsToDouble(memo.get(key, 0));
+        }
+        double best = 0;
+        if (memo.size() <= NODE_BUDGET) {
+            for (Direction d : Direction.values()) {
+                long next = Tablebase.move(board, width, height, d);
+                if (next == board) {
+                    continue;
+                }
+                double sum = 0;
+                int empty = 0;
+                for (int cell = 0; cell < cells; ++cell) {
+                    if ((next >>> (4 * cell) & 0xF) == 0) {
+                        sum += solve(next | 1L << (4 * cell), memo) + solve(next | 2L << (4 * cell), memo);
+                        ++empty;
+                    }
+                }
+                best = Math.max(best, Tablebase.potential(next) - Tablebase.potential(board) + sum / (2 * empty));
+            }
+        }
+        memo.put(key, Double.doubleToRawLongBits(best), 0);
+        return best;
+    }
+
+    private void verifyBook(int samples) {
+        GameRandom rand = new GameRandom(48);
+        int checked = 0;
+        int tries = 0;
+        // One transposition table for all samples, a solver per sample spent its time zeroing tables
+        Expectimax solver = new Expectimax();
+        while (checked < samples && tries < samples * 100) {
+            ++tries;
+            // A start position and sometimes a move and a spawn after it
+            long board = spawn(spawn(0, rand), rand);
+            if (rand.nextBoolean()) {
+                Direction d = Direction.of(rand.nextInt(Direction.count()));
+                long next = Tablebase.move(board, width, height, d);
+                if (next != board) {
+                    board = spawn(next, rand);
+                }
+            }
+            if (!table.contains(board)) {
+                continue;
+            }
+            ++checked;
+            float[] values = solver.evaluateMoves(board, table.getDepth());
+            Direction stored = table.getMove(board);
+            float best = -1;
+            for (float value : values) {
+                best = Math.max(best, value);
+            }
+            if (stored == null ? best >= 0 : !close(values[stored.ordinal()], best)) {
+                mismatch(board, "move " + stored + " is not the best of the search");
+            } else if (best >= 0 && !close(table.getValue(board), best)) {
+                mismatch(board, "value " + table.getValue(board) + ", the search gives " + best);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d book positions searched again%n", checked);
+    }
+
+    // A BASE or NEXT_BASE tile on a random empty cell, as Game spawns
+    private long spawn(long board, GameRandom rand) {
+        int empty = 0;
+        for (int cell = 0; cell < cells; ++cell) {
+            if ((board >>> (4 * cell) & 0xF) == 0) {
+                ++empty;
+            }
+        }
+        int pick = rand.nextInt(empty);
+        for (int cell = 0; ; ++cell) {
+            if ((board >>> (4 * cell) & 0xF) == 0 && pick-- == 0) {
+                return board | (rand.nextBoolean() ? 2L : 1L) << (4 * cell);
+            }
+        }
+    }
+
+    private static boolean close(double a, double b) {
+        return Math.abs(a - b) <= TOLERANCE * Math.max(1, Math.abs(b));
+    }
+
+    private void mismatch(long board, String message) {
+        if (mismatches++ < 20) {
+            System.out.printf(Locale.ROOT, "%016x: %s%n", board, message);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+// Fixed size, lossy cache of search values keyed by 4x4 bitboard, canonical ones
+// in Expectimax, see Symmetries.
+// Memory is bounded by the size given at construction, a full table evicts the
+// shallower of the two entries in a bucket. Search threads share it without locks:
+// each slot keeps key ^ data next to data, so a slot torn by concurrent writers
+// fails the key check and reads as a miss.
+public final class TranspositionTable {
+
+    public static final float MISS = -1f;
+
+    private static final int BYTES_PER_SLOT = 2 * Long.BYTES;
+
+    private final long[] keys;
+    private final long[] data;
+    private final int mask;
+
+    public TranspositionTable(int megabytes) {
+        Useful.require(megabytes > 0);
+        long slots = Long.highestOneBit((long) megabytes * 1024 * 1024 / BYTES_PER_SLOT);
+        int capacity = (int) Math.min(slots, 1 << 30);
+        keys = new long[capacity];
+        data = new long[capacity];
+        mask = capacity - 2;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    // Returns the stored value if it was searched at least depth plies deep, MISS otherwise
+    public float get(long board, int depth) {
+        int slot = bucket(board);
+        for (int k = slot; k <= slot + 1; ++k) {
+            long d = data[k];
+            if ((keys[k] ^ d) == board && storedDepth(d) >= depth) {
+                return Float.intBitsToFloat((int) d);
+            }
+        }
+        return MISS;
+    }
+
+    public void put(long board, int depth, float value) {
+        int slot = bucket(board);
+        int victim;
+        if ((keys[slot] ^ data[slot]) == board) {
+            victim = slot;
+        } else if ((keys[slot + 1] ^ data[slot + 1]) == board) {
+            victim = slot + 1;
+        } else {
+            victim = storedDepth(data[slot]) <= storedDepth(data[slot + 1]) ? slot : slot + 1;
+        }
+        // Depth is stored plus one so that an all zero slot never matches
+        long d = (long) (depth + 1) << 32 | (Float.floatToRawIntBits(value) & 0xFFFFFFFFL);
+        data[victim] = d;
+        keys[victim] = board ^ d;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+
+    private int bucket(long board) {
+        return LongMap.bucket(board, mask);
+    }
+
+    private static int storedDepth(long d) {
+        return (int) (d >>> 32) - 1;
+    }
+}
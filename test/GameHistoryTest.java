@@ -0,0 +1,109 @@
+import java.util.Random;
+
+// Checks that the undo history is charged exactly for the snapshots it keeps, and
+// that a game taken back by undo no longer claims to replay from its seed.
+// Run with: java -cp out/production/2048:out/test/2048 GameHistoryTest
+public final class GameHistoryTest {
+
+    private GameHistoryTest() {}
+
+    public static void main(String[] args) {
+        undoRedoCyclesKeepTheCharge();
+        undoingEverythingFreesEverything();
+        recordedGamesReplayExactly();
+        undoneGamesDoNotRecord();
+        System.out.println("GameHistoryTest passed");
+    }
+
+    // An undo followed by a redo ends where it started, in moves and in bytes
+    private static void undoRedoCyclesKeepTheCharge() {
+        Game game = playedGame(20);
+        long bytes = game.getHistoryBytes();
+        int depth = game.getUndoDepth();
+        for (int cycle = 0; cycle < 200; ++cycle) {
+            check(game.undo() && game.redo(), "undo and redo after cycle " + cycle);
+            check(game.getHistoryBytes() == bytes, "charged " + game.getHistoryBytes() + " bytes after cycle "
+                    + cycle + ", " + bytes + " before");
+            check(game.getUndoDepth() == depth, "depth " + game.getUndoDepth() + " after cycle " + cycle);
+        }
+        for (int k = 0; k < depth; ++k) {
+            check(game.undo(), "undo " + k + " of " + depth);
+        }
+    }
+
+    private static void undoingEverythingFreesEverything() {
+        Game game = playedGame(50);
+        while (game.undo()) {
+            check(game.getHistoryBytes() >= 0, "negative charge " + game.getHistoryBytes());
+        }
+        check(game.getUndoDepth() == 0, "depth " + game.getUndoDepth() + " after undoing everything");
+        check(game.getHistoryBytes() == 0, game.getHistoryBytes() + " bytes charged for an empty history");
+    }
+
+    // A game recorded from its first move ends on the board its log replays to
+    private static void recordedGamesReplayExactly() {
+        for (long seed = 0; seed < 200; ++seed) {
+            Game game = new Game(4, 4, seed);
+            MoveLog log = game.startRecording();
+            play(game, new Random(seed), 30);
+            Game replayed = log.replay();
+            check(replayed.getScore() == game.getScore() && sameBoard(replayed, game), "replay of seed " + seed);
+        }
+    }
+
+    // Undo and load rebuild the free list in another order than the seed dealt it,
+    // so their spawns differ from a replay. Such games must refuse to record.
+    private static void undoneGamesDoNotRecord() {
+        Game game = playedGame(30);
+        while (game.undo()) {
+            check(game.getHistoryBytes() >= 0, "negative charge " + game.getHistoryBytes());
+        }
+        check(game.getMoveCount() == 0, game.getMoveCount() + " moves after undoing everything");
+        check(refusesToRecord(game), "a game undone to its start began recording");
+
+        Game loaded = Game.fromBytes(new Game(4, 4, 7).toBytes(), null, MoveExecutor.SEQUENTIAL);
+        check(refusesToRecord(loaded), "a loaded game began recording");
+    }
+
+    private static boolean refusesToRecord(Game game) {
+        try {
+            game.startRecording();
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static boolean sameBoard(Game game, Game other) {
+        for (int i = 0; i < game.getHeight(); ++i) {
+            for (int j = 0; j < game.getWidth(); ++j) {
+                if (game.getExponent(i, j) != other.getExponent(i, j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Game playedGame(int moves) {
+        // Headless games keep no history unless asked to
+        Game game = new Game(4, 4, 7);
+        game.setHistoryBudget(Game.DEFAULT_HISTORY_BYTES);
+        play(game, new Random(7), moves);
+        return game;
+    }
+
+    private static void play(Game game, Random policy, int moves) {
+        for (int played = 0; played < moves && game.legalMoves() != 0; ) {
+            if (game.move(Direction.of(policy.nextInt(Direction.count()))) != Engine.UNCHANGED) {
+                ++played;
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}